@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing and decompressing the JSON backup of a synthetic tree with each {@link Codec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({ "10" })
+    int fanOut;
+
+    @Param({ "4" })
+    int depth;
+
+    @Param({ "256" })
+    int payloadSize;
+
+    // Generated code can't refer to Codec (it isn't public)
+    @Param({ "GZIP", "SNAPPY" })
+    String codecName;
+
+    @Param({ "1", "4" })
+    int threads;
+
+    private Compression compression;
+    private byte[] backup;
+    private byte[] compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        compression = new Compression(Codec.valueOf(codecName), threads);
+        backup = SyntheticTree.write(SyntheticTree.generate(fanOut, depth, payloadSize), BackupFormat.JSON);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final OutputStream compressing = compression.wrap(os);
+        compressing.write(backup);
+        compressing.close();
+        compressed = os.toByteArray();
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        final CountingOutputStream os = new CountingOutputStream(ByteStreams.nullOutputStream());
+        final OutputStream compressing = compression.wrap(os);
+        compressing.write(backup);
+        compressing.close();
+        return os.getCount();
+    }
+
+    @Benchmark
+    public long decompress() throws IOException {
+        final InputStream is = compression.wrap(new ByteArrayInputStream(compressed));
+        final long length = ByteStreams.copy(is, ByteStreams.nullOutputStream());
+        is.close();
+        return length;
+    }
+}
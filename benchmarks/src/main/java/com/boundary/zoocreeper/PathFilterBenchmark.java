@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Matching every path of a synthetic tree against the --exclude and --include patterns
+ * ({@link CommonOptions#isPathExcluded} and {@link CommonOptions#isPathIncluded}).
+ * <p>
+ * Half of the patterns are anchored subtrees and half are unanchored names. None of them match (except for a final
+ * include pattern matching every path), so every pattern is tried for every path. The "literal" patterns are matched
+ * with tries, and the "regex" ones (with character classes and wildcards) are combined into a single alternation.
+ * {@link #filterSeparately()} tries each pattern in turn, as the options did before the patterns were compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathFilterBenchmark {
+    private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+
+    @Param({ "10" })
+    int fanOut;
+
+    @Param({ "4" })
+    int depth;
+
+    @Param({ "0", "1", "8" })
+    int numPatterns;
+
+    @Param({ "literal", "regex" })
+    String patternType;
+
+    private final List<String> paths = Lists.newArrayList();
+    private final RestoreOptions options = new RestoreOptions();
+
+    @Setup
+    public void setup() {
+        for (BackupZNode zNode : SyntheticTree.generate(fanOut, depth, 0)) {
+            paths.add(zNode.path);
+        }
+        for (int i = 0; i < numPatterns; i++) {
+            final String format;
+            if ("literal".equals(patternType)) {
+                format = (i % 2 == 0) ? "^/excluded-%d/" : "/excluded-name-%d$";
+            } else {
+                format = (i % 2 == 0) ? "^/excluded-[a-z]+/.*-%d" : "/excluded-name-[a-z]+-%d";
+            }
+            final Pattern pattern = Pattern.compile(String.format(format, i));
+            options.excludePatterns.add(pattern);
+            options.includePatterns.add(Pattern.compile(pattern.pattern().replace("excluded", "node")));
+        }
+        if (numPatterns > 0) {
+            // Include everything, once the other include patterns have been tried
+            options.includePatterns.add(Pattern.compile("^/"));
+        }
+    }
+
+    @Benchmark
+    public int filter() {
+        int matched = 0;
+        for (String path : paths) {
+            if (!options.isPathExcluded(LOGGER, path) && options.isPathIncluded(LOGGER, path)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int filterSeparately() {
+        int matched = 0;
+        for (String path : paths) {
+            if (!findsAny(options.excludePatterns, path)
+                    && (options.includePatterns.isEmpty() || findsAny(options.includePatterns, path))) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean findsAny(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping of {@link Restore} (tracking the current path and the paths known to exist), restoring a synthetic
+ * tree into a stub ZooKeeper which doesn't do anything. The znodes are generated as they are read, so the heap used by
+ * the restore is all that grows with the tree.
+ * <p>
+ * {@link #restore()} measures the time per restore. {@link #retainedHeap(Heap)} samples the heap used after a full GC
+ * a few times during each restore, and reports the largest increase over the heap used before it (retainedKb), which
+ * should stay flat as the tree grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RestoreBenchmark {
+    // Number of heap samples taken during each restore by retainedHeap()
+    private static final int HEAP_SAMPLES = 8;
+
+    @Param({ "10" })
+    int fanOut;
+
+    @Param({ "3", "4", "5" })
+    int depth;
+
+    private ZooKeeper zk;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        zk = new StubZooKeeper();
+        // The stub only uses the overridden methods, so the client is closed to stop it trying to connect
+        zk.close();
+    }
+
+    @Benchmark
+    public void restore() throws Exception {
+        new Restore(new RestoreOptions()).doRestore(SyntheticTree.reader(fanOut, depth, 0), zk);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void retainedHeap(final Heap heap) throws Exception {
+        final long baseline = usedHeapAfterGc();
+        final long sampleInterval = Math.max(1, SyntheticTree.size(fanOut, depth) / HEAP_SAMPLES);
+        final BackupReader tree = SyntheticTree.reader(fanOut, depth, 0);
+        new Restore(new RestoreOptions()).doRestore(new BackupReader() {
+            private long count = 0;
+
+            @Override
+            public BackupZNode next() throws IOException {
+                if (++count % sampleInterval == 0) {
+                    heap.retainedKb = Math.max(heap.retainedKb, (usedHeapAfterGc() - baseline) / 1024);
+                }
+                return tree.next();
+            }
+
+            @Override
+            public void close() throws IOException {
+                tree.close();
+            }
+        }, zk);
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Largest increase of the heap used after a full GC during a restore (in KB).
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long retainedKb;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedKb = 0;
+        }
+    }
+
+    /**
+     * ZooKeeper client where every znode can be created (and every parent exists).
+     */
+    private static class StubZooKeeper extends ZooKeeper {
+        private StubZooKeeper() throws IOException {
+            super("127.0.0.1:1", 30000, new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                }
+            });
+        }
+
+        @Override
+        public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
+            return path;
+        }
+
+        @Override
+        public Stat exists(String path, boolean watch) {
+            return new Stat();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading a whole backup of a synthetic tree: {@link Backup#dumpNode} and {@link JsonBackupReader} for
+ * JSON, and {@link BinaryBackupWriter} and {@link BinaryBackupReader} for the binary format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({ "10" })
+    int fanOut;
+
+    @Param({ "4" })
+    int depth;
+
+    @Param({ "64", "1024" })
+    int payloadSize;
+
+    // Generated code can't refer to BackupFormat (it isn't public)
+    @Param({ "JSON", "BINARY" })
+    String formatName;
+
+    private BackupFormat format;
+    private List<BackupZNode> tree;
+    private byte[] backup;
+
+    @Setup
+    public void setup() throws IOException {
+        format = BackupFormat.valueOf(formatName);
+        tree = SyntheticTree.generate(fanOut, depth, payloadSize);
+        backup = SyntheticTree.write(tree, format);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        final CountingOutputStream os = new CountingOutputStream(ByteStreams.nullOutputStream());
+        final BackupWriter writer = format.createWriter(os, false, false);
+        for (BackupZNode zNode : tree) {
+            writer.write(zNode);
+        }
+        writer.close();
+        return os.getCount();
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws IOException {
+        final BackupReader reader = format.createReader(new ByteArrayInputStream(backup), false);
+        for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+            blackhole.consume(zNode);
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic trees used by the benchmarks.
+ * <p>
+ * Every znode down to the given depth has the same number of children, and the data of each znode is random text from
+ * a small alphabet, so it compresses roughly like typical configuration data.
+ */
+final class SyntheticTree {
+    private static final String ALPHABET = "abcdefghijklmnop{}\":, 0123456789";
+
+    private SyntheticTree() {}
+
+    /**
+     * Generates the znodes of a tree in sorted depth-first order (the order of a backup).
+     *
+     * @param fanOut Number of children of each znode above the leaves.
+     * @param depth Depth of the leaves (the root has depth 0).
+     * @param payloadSize Size of the data of each znode.
+     */
+    static List<BackupZNode> generate(int fanOut, int depth, int payloadSize) {
+        final List<BackupZNode> zNodes = Lists.newArrayList();
+        final TreeReader reader = reader(fanOut, depth, payloadSize);
+        for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+            zNodes.add(zNode);
+        }
+        return zNodes;
+    }
+
+    /**
+     * Returns the number of znodes in a tree.
+     */
+    static long size(int fanOut, int depth) {
+        long size = 0;
+        long level = 1;
+        for (int i = 0; i <= depth; i++) {
+            size += level;
+            level *= fanOut;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the backup of a tree in the specified format.
+     */
+    static byte[] write(List<BackupZNode> zNodes, BackupFormat format) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final BackupWriter writer = format.createWriter(os, false, false);
+        for (BackupZNode zNode : zNodes) {
+            writer.write(zNode);
+        }
+        writer.close();
+        return os.toByteArray();
+    }
+
+    /**
+     * Returns a reader which generates the znodes of a tree (see {@link #generate}) as they are read, so only the
+     * path to the current znode is held in memory.
+     */
+    static TreeReader reader(int fanOut, int depth, int payloadSize) {
+        return new TreeReader(fanOut, depth, payloadSize);
+    }
+
+    static final class TreeReader implements BackupReader {
+        private final int fanOut;
+        private final int depth;
+        private final int payloadSize;
+        private final Random random = new Random(42);
+        // Children still to be generated of each znode on the path to the last one read
+        private final Deque<Parent> parents = new ArrayDeque<Parent>();
+        private long count = 0;
+
+        private TreeReader(int fanOut, int depth, int payloadSize) {
+            this.fanOut = fanOut;
+            this.depth = depth;
+            this.payloadSize = payloadSize;
+        }
+
+        @Override
+        public BackupZNode next() {
+            if (count == 0) {
+                return generate("/", depth);
+            }
+            while (!parents.isEmpty()) {
+                final Parent parent = parents.peek();
+                if (parent.nextChild == fanOut) {
+                    parents.pop();
+                    continue;
+                }
+                return generate(parent.childPrefix + String.format("node-%04d", parent.nextChild++),
+                        parent.childDepth);
+            }
+            return null;
+        }
+
+        private BackupZNode generate(String path, int remainingDepth) {
+            final long zxid = ++count;
+            final Stat stat = new Stat(zxid, zxid, zxid, zxid, 0, 0, 0, 0, payloadSize,
+                    remainingDepth > 0 ? fanOut : 0, zxid);
+            final byte[] data = new byte[payloadSize];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            if (remainingDepth > 0) {
+                parents.push(new Parent("/".equals(path) ? "/" : path + "/", remainingDepth - 1));
+            }
+            return new BackupZNode(path, stat, data, Ids.OPEN_ACL_UNSAFE);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Parent {
+        private final String childPrefix;
+        private final int childDepth;
+        private int nextChild = 0;
+
+        private Parent(String childPrefix, int childDepth) {
+            this.childPrefix = childPrefix;
+            this.childDepth = childDepth;
+        }
+    }
+}
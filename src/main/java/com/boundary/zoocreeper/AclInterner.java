@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.ZooDefs.Perms;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe cache of canonical ACLs and ACL lists, so the znodes of a backup (which nearly all have one of a handful
+ * of ACL lists) share the same immutable lists instead of each holding a copy.
+ * <p>
+ * At most {@link #MAX_LISTS} distinct ACL lists are interned, after which new lists are returned as they are.
+ */
+class AclInterner {
+    static final int MAX_LISTS = 64 * 1024;
+
+    private final ConcurrentMap<List<ACL>, List<ACL>> lists = new ConcurrentHashMap<List<ACL>, List<ACL>>();
+    /**
+     * Canonical ACLs by scheme, id and perms.
+     */
+    private final Map<String, Map<String, ACL[]>> acls = Maps.newHashMap();
+
+    /**
+     * Returns the canonical ACL with the specified perms and id.
+     */
+    synchronized ACL acl(int perms, String scheme, String id) {
+        if (perms < 0 || perms > Perms.ALL) {
+            return new ACL(perms, new Id(scheme, id));
+        }
+        Map<String, ACL[]> schemeAcls = acls.get(scheme);
+        if (schemeAcls == null) {
+            schemeAcls = Maps.newHashMap();
+            acls.put(scheme, schemeAcls);
+        }
+        ACL[] idAcls = schemeAcls.get(id);
+        if (idAcls == null) {
+            idAcls = new ACL[Perms.ALL + 1];
+            schemeAcls.put(id, idAcls);
+        }
+        if (idAcls[perms] == null) {
+            idAcls[perms] = new ACL(perms, findId(idAcls, scheme, id));
+        }
+        return idAcls[perms];
+    }
+
+    /**
+     * Returns the Id shared by the ACLs already created for an id, or a new Id for the first one.
+     */
+    private static Id findId(ACL[] idAcls, String scheme, String id) {
+        for (ACL acl : idAcls) {
+            if (acl != null) {
+                return acl.getId();
+            }
+        }
+        return new Id(scheme, id);
+    }
+
+    /**
+     * Returns the canonical immutable copy of a list of ACLs (or null for null).
+     */
+    List<ACL> intern(List<ACL> list) {
+        if (list == null) {
+            return null;
+        }
+        final List<ACL> interned = lists.get(list);
+        if (interned != null) {
+            return interned;
+        }
+        if (lists.size() >= MAX_LISTS) {
+            return list;
+        }
+        final ImmutableList.Builder<ACL> builder = ImmutableList.builder();
+        for (ACL acl : list) {
+            builder.add(acl(acl.getPerms(), acl.getId().getScheme(), acl.getId().getId()));
+        }
+        final List<ACL> copy = builder.build();
+        final List<ACL> existing = lists.putIfAbsent(copy, copy);
+        return (existing != null) ? existing : copy;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the distinct ACL lists of a deduplicated backup, so each list is written once and znodes refer to it by
+ * id. Ids are assigned in the order lists are first seen, starting from zero, and writers define each list before its
+ * first reference. The table is limited to {@link #MAX_SIZE} lists, after which new lists are written in full.
+ */
+class AclTable {
+    static final int MAX_SIZE = 64 * 1024;
+
+    private final Map<List<ACL>, Integer> ids = Maps.newHashMap();
+
+    /**
+     * Looks up a list of ACLs, adding it to the table if it hasn't been seen before.
+     *
+     * @return The id of the list, or -1 if the table is full. Ids of lists which haven't been written yet are
+     *         {@link #size()} minus one.
+     */
+    int lookup(List<ACL> acls) {
+        final Integer id = ids.get(acls);
+        if (id != null) {
+            return id;
+        }
+        if (ids.size() >= MAX_SIZE) {
+            return -1;
+        }
+        final int newId = ids.size();
+        ids.put(acls, newId);
+        return newId;
+    }
+
+    int size() {
+        return ids.size();
+    }
+}
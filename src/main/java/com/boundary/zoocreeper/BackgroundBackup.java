@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Throwables;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a {@link Backup} in its own thread, so that the znodes it reads from ZooKeeper can be read in order as they
+ * arrive. At most a fixed number of znodes are read ahead of the reader, which blocks the backup while the reader
+ * falls behind.
+ */
+class BackgroundBackup implements BackupReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundBackup.class);
+
+    private final ZNodeQueue queue;
+    private final BackupReader reader;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final Thread thread;
+
+    BackgroundBackup(final Backup backup, int queueSize) {
+        this.queue = new ZNodeQueue(queueSize);
+        this.reader = queue.reader();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = null;
+                try {
+                    backup.backup(queue.writer());
+                } catch (Throwable t) {
+                    error = t;
+                    failure.set(t);
+                } finally {
+                    try {
+                        queue.end(error);
+                    } catch (IOException e) {
+                        LOGGER.debug("Failed to end queue", e);
+                    }
+                }
+            }
+        }, "background-backup");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the backup.
+     */
+    BackgroundBackup start() {
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        return reader.next();
+    }
+
+    /**
+     * Returns true if the backup failed (in which case reading the rest of it fails).
+     */
+    boolean isFailed() {
+        return failure.get() != null;
+    }
+
+    /**
+     * Throws the exception which stopped the backup (if it failed).
+     */
+    void checkFailure() throws KeeperException, InterruptedException, IOException {
+        final Throwable t = failure.get();
+        if (t != null) {
+            Throwables.propagateIfInstanceOf(t, KeeperException.class);
+            Throwables.propagateIfInstanceOf(t, InterruptedException.class);
+            Throwables.propagateIfInstanceOf(t, IOException.class);
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * Stops reading the backup, waiting for its thread to stop (once the backup is closed, its next write fails).
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping backup", e);
+        }
+    }
+}
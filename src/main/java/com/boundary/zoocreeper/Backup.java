@@ -15,13 +15,17 @@
  */
 package com.boundary.zoocreeper;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -31,19 +35,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Backup command.
  */
 public class Backup {
     private static final Logger LOGGER = LoggerFactory.getLogger(Backup.class);
-    private static final JsonFactory JSON_FACTORY = new JsonFactory();
     public static final String FIELD_AVERSION = "aversion";
     public static final String FIELD_CTIME = "ctime";
     public static final String FIELD_CVERSION = "cversion";
@@ -51,10 +57,15 @@ public class Backup {
     public static final String FIELD_EPHEMERAL_OWNER = "ephemeralOwner";
     public static final String FIELD_MTIME = "mtime";
     public static final String FIELD_MZXID = "mzxid";
+    public static final String FIELD_NUM_CHILDREN = "numChildren";
     public static final String FIELD_PZXID = "pzxid";
     public static final String FIELD_VERSION = "version";
     public static final String FIELD_DATA = "data";
+    public static final String FIELD_DATA_ID = "dataId";
+    public static final String FIELD_DATA_REF = "dataRef";
     public static final String FIELD_ACLS = "acls";
+    public static final String FIELD_ACLS_ID = "aclsId";
+    public static final String FIELD_ACLS_REF = "aclsRef";
     public static final String FIELD_ACL_ID = "id";
     public static final String FIELD_ACL_SCHEME = "scheme";
     public static final String FIELD_ACL_PERMS = "perms";
@@ -65,85 +76,262 @@ public class Backup {
     }
 
     public void backup(OutputStream os) throws InterruptedException, IOException, KeeperException {
-        JsonGenerator jgen = null;
+        backup(options.format.createWriter(os, options.prettyPrint, options.dedup));
+    }
+
+    /**
+     * Backs up ZooKeeper to the specified writer, which is closed if the backup is complete. When resuming, znodes up
+     * to the --resume point aren't written, and subtrees which were completely written aren't read.
+     */
+    void backup(BackupWriter backupWriter) throws InterruptedException, IOException, KeeperException {
+        final BackupWriter writer = options.metrics.meter(
+                (options.resumeAfter != null) ? skipResumed(backupWriter) : backupWriter);
+        if (options.dataDir != null) {
+            new OfflineBackup(options, writer).backup(options.rootPath);
+            writer.close();
+            return;
+        }
         ZooKeeper zk = null;
         try {
-            zk = options.createZooKeeper(LOGGER);
-            jgen = JSON_FACTORY.createGenerator(os);
-            if (options.prettyPrint) {
-                jgen.setPrettyPrinter(new DefaultPrettyPrinter());
+            zk = options.createZooKeeper(LOGGER, 0);
+            if (options.readServers != null) {
+                // The server may lag behind the leader
+                sync(zk, options.rootPath);
             }
-            jgen.writeStartObject();
-            if (zk.exists(options.rootPath, false) == null) {
+            if (options.baselineFile != null) {
+                new IncrementalBackup(options, zk, writer).backup(options.rootPath);
+            } else if (zk.exists(options.rootPath, false) == null) {
                 LOGGER.warn("Root path not found: {}", options.rootPath);
+            } else if (options.parallelism > 1) {
+                new ParallelBackup(options, writer).backup(zk, options.rootPath);
+            } else if (options.async) {
+                new PipelinedBackup(options, zk, writer).backup(options.rootPath);
             } else {
-                doBackup(zk, jgen, options.rootPath);
+                doBackup(zk, writer, options.rootPath);
             }
-            jgen.writeEndObject();
+            // Only a complete backup is ended (a failed one is left truncated)
+            writer.close();
         } finally {
-            if (jgen != null) {
-                jgen.close();
-            }
             if (zk != null) {
                 zk.close();
             }
         }
     }
 
-    private static String createFullPath(String path, String childPath) {
-        final String fullChildPath;
-        if (path.endsWith("/")) {
-            fullChildPath = path + childPath;
-        } else {
-            fullChildPath = path + '/' + childPath;
-        }
-        return fullChildPath;
+    /**
+     * Returns a writer which drops the znodes written by the run being resumed.
+     */
+    private BackupWriter skipResumed(final BackupWriter writer) {
+        return new BackupWriter() {
+            @Override
+            public void write(BackupZNode zNode) throws IOException {
+                if (!options.isResumed(zNode.path)) {
+                    writer.write(zNode);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
     }
 
-    private static <T> List<T> nullToEmpty(List<T> original) {
+    static <T> List<T> nullToEmpty(List<T> original) {
         return (original != null) ? original : Collections.<T> emptyList();
     }
 
-    private void doBackup(ZooKeeper zk, JsonGenerator jgen, String path)
+    private void doBackup(ZooKeeper zk, BackupWriter writer, String path)
             throws KeeperException, InterruptedException, IOException {
         try {
-            final Stat stat = new Stat();
-            List<ACL> acls = nullToEmpty(zk.getACL(path, stat));
-            if (stat.getEphemeralOwner() != 0 && !options.backupEphemeral) {
-                LOGGER.debug("Skipping ephemeral node: {}", path);
+            final BackupZNode zNode = readZNode(zk, path, options);
+            if (zNode == null) {
                 return;
             }
-
-            final Stat dataStat = new Stat();
-            byte[] data = zk.getData(path, false, dataStat);
-            for (int i = 0; stat.compareTo(dataStat) != 0 && i < options.numRetries; i++) {
-                LOGGER.warn("Retrying getACL / getData to read consistent state");
-                acls = zk.getACL(path, stat);
-                data = zk.getData(path, false, dataStat);
-            }
-            if (stat.compareTo(dataStat) != 0) {
-                throw new IllegalStateException("Unable to read consistent data for znode: " + path);
-            }
             LOGGER.debug("Backing up node: {}", path);
-            dumpNode(jgen, path, stat, acls, data);
-            final List<String> childPaths = nullToEmpty(zk.getChildren(path, false, null));
-            Collections.sort(childPaths);
-            for (String childPath : childPaths) {
-                final String fullChildPath = createFullPath(path, childPath);
-                if (!this.options.isPathExcluded(LOGGER, fullChildPath)) {
-                    if (this.options.isPathIncluded(LOGGER, fullChildPath)) {
-                        doBackup(zk, jgen, fullChildPath);
-                    }
-                }
+            writer.write(zNode);
+            for (String childPath : getChildPaths(options, path, zk.getChildren(path, false, null))) {
+                doBackup(zk, writer, childPath);
             }
         } catch (NoNodeException e) {
             LOGGER.warn("Node disappeared during backup: {}", path);
         }
     }
 
-    private void dumpNode(JsonGenerator jgen, String path, Stat stat, List<ACL> acls, byte[] data) throws IOException {
+    /**
+     * Waits for the server a client is connected to to catch up with the leader, so the reads which follow see every
+     * change committed before the sync.
+     */
+    static void sync(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+        final CountDownLatch synced = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger();
+        zk.sync(path, new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                result.set(rc);
+                synced.countDown();
+            }
+        }, null);
+        synced.await();
+        if (result.get() != Code.OK.intValue()) {
+            throw KeeperException.create(Code.get(result.get()), path);
+        }
+    }
+
+    /**
+     * Reads a consistent copy of the ACLs and data of a znode.
+     *
+     * @return The znode, or null if it is an ephemeral node which shouldn't be backed up.
+     */
+    static BackupZNode readZNode(ZooKeeper zk, String path, BackupOptions options)
+            throws KeeperException, InterruptedException {
+        return readZNode(zk, path, options, null);
+    }
+
+    /**
+     * Reads a consistent copy of the ACLs and data of a znode, leaving a data watch on it.
+     *
+     * @param watcher Watcher to set on the data of the znode (or null for no watch).
+     * @return The znode, or null if it is an ephemeral node which shouldn't be backed up (no watch is set).
+     */
+    static BackupZNode readZNode(ZooKeeper zk, String path, BackupOptions options, Watcher watcher)
+            throws KeeperException, InterruptedException {
+        final Stat stat = new Stat();
+        List<ACL> acls = options.aclInterner.intern(nullToEmpty(zk.getACL(path, stat)));
+        if (stat.getEphemeralOwner() != 0 && !options.backupEphemeral) {
+            LOGGER.debug("Skipping ephemeral node: {}", path);
+            return null;
+        }
+
+        final Stat dataStat = new Stat();
+        byte[] data = zk.getData(path, watcher, dataStat);
+        for (int i = 0; stat.compareTo(dataStat) != 0 && i < options.numRetries; i++) {
+            LOGGER.warn("Retrying getACL / getData to read consistent state");
+            options.metrics.increment(Metrics.RETRIES);
+            acls = options.aclInterner.intern(nullToEmpty(zk.getACL(path, stat)));
+            data = zk.getData(path, watcher, dataStat);
+        }
+        if (stat.compareTo(dataStat) != 0) {
+            throw new IllegalStateException("Unable to read consistent data for znode: " + path);
+        }
+        return new BackupZNode(path, stat, data, acls);
+    }
+
+    /**
+     * Returns the sorted full paths of the children of a znode which should be backed up. When resuming, children
+     * whose subtrees were completely written by the run being resumed are left out.
+     */
+    static List<String> getChildPaths(CommonOptions options, String path, List<String> children) {
+        final List<String> childPaths = Lists.newArrayList(nullToEmpty(children));
+        Collections.sort(childPaths);
+        for (ListIterator<String> it = childPaths.listIterator(); it.hasNext(); ) {
+            final String fullChildPath = ZooKeeperPaths.createFullPath(path, it.next());
+            if (options.isPathExcluded(LOGGER, fullChildPath) || !options.isPathIncluded(LOGGER, fullChildPath)
+                    || isResumedSubtree(options, fullChildPath)) {
+                it.remove();
+            } else {
+                it.set(fullChildPath);
+            }
+        }
+        return childPaths;
+    }
+
+    /**
+     * Returns true if a znode and all its descendants come before the --resume point, which is the case unless the
+     * znode is the resume point or one of its ancestors.
+     */
+    private static boolean isResumedSubtree(CommonOptions options, String path) {
+        return options.isResumed(path) && !path.equals(options.resumeAfter)
+                && !ZooKeeperPaths.isDescendant(options.resumeAfter, path);
+    }
+
+    static void dumpNode(JsonGenerator jgen, String path, Stat stat, List<ACL> acls, byte[] data) throws IOException {
+        dumpNode(jgen, path, stat, acls, data, -1, false, -1, false);
+    }
+
+    /**
+     * Writes a znode whose data may be in a {@link PayloadDictionary} and whose ACLs may be in an {@link AclTable}.
+     *
+     * @param dataId Id of the data in the dictionary, or -1 if it isn't in the dictionary.
+     * @param reference True to refer to data already written with its id, false to write the data (along with its id,
+     *                  if it has one).
+     * @param aclsId Id of the ACLs in the table, or -1 if they aren't in the table.
+     * @param aclsReference True to refer to ACLs already written with their id, false to write the ACLs (along with
+     *                      their id, if they have one).
+     */
+    static void dumpNode(JsonGenerator jgen, String path, Stat stat, List<ACL> acls, byte[] data, int dataId,
+                         boolean reference, int aclsId, boolean aclsReference) throws IOException {
         jgen.writeObjectFieldStart(path);
+        dumpStat(jgen, stat);
 
+        if (reference) {
+            jgen.writeNumberField(FIELD_DATA_REF, dataId);
+        } else {
+            if (data != null) {
+                jgen.writeBinaryField(FIELD_DATA, data);
+            } else {
+                jgen.writeNullField(FIELD_DATA);
+            }
+            if (dataId >= 0) {
+                jgen.writeNumberField(FIELD_DATA_ID, dataId);
+            }
+        }
+
+        if (aclsReference) {
+            jgen.writeNumberField(FIELD_ACLS_REF, aclsId);
+        } else {
+            jgen.writeArrayFieldStart(FIELD_ACLS);
+            for (ACL acl : acls) {
+                jgen.writeStartObject();
+                jgen.writeStringField(FIELD_ACL_ID, acl.getId().getId());
+                jgen.writeStringField(FIELD_ACL_SCHEME, acl.getId().getScheme());
+                jgen.writeNumberField(FIELD_ACL_PERMS, acl.getPerms());
+                jgen.writeEndObject();
+            }
+            jgen.writeEndArray();
+            if (aclsId >= 0) {
+                jgen.writeNumberField(FIELD_ACLS_ID, aclsId);
+            }
+        }
+
+        jgen.writeEndObject();
+    }
+
+    /**
+     * Writes a znode, which may be an incremental backup entry.
+     */
+    static void dumpZNode(JsonGenerator jgen, BackupZNode zNode) throws IOException {
+        if (zNode.isDeleted()) {
+            dumpDeleted(jgen, zNode.path);
+        } else if (!zNode.hasContent()) {
+            dumpStatOnly(jgen, zNode.path, zNode.stat);
+        } else {
+            dumpNode(jgen, zNode.path, zNode.stat, zNode.acls, zNode.data);
+        }
+    }
+
+    /**
+     * Writes an incremental backup entry for a znode where only the stat changed (no data or ACLs).
+     */
+    static void dumpStatOnly(JsonGenerator jgen, String path, Stat stat) throws IOException {
+        jgen.writeObjectFieldStart(path);
+        dumpStat(jgen, stat);
+        jgen.writeEndObject();
+    }
+
+    /**
+     * Writes an incremental backup entry for a deleted znode.
+     */
+    static void dumpDeleted(JsonGenerator jgen, String path) throws IOException {
+        jgen.writeNullField(path);
+    }
+
+    private static void dumpStat(JsonGenerator jgen, Stat stat) throws IOException {
         // The number of changes to the ACL of this znode.
         jgen.writeNumberField(FIELD_AVERSION, stat.getAversion());
 
@@ -170,31 +358,13 @@ public class Backup {
         jgen.writeNumberField(FIELD_MZXID, stat.getMzxid());
 
         // The number of children of this znode.
-        jgen.writeNumberField("numChildren", stat.getNumChildren());
+        jgen.writeNumberField(FIELD_NUM_CHILDREN, stat.getNumChildren());
 
         // last modified children?
         jgen.writeNumberField(FIELD_PZXID, stat.getPzxid());
 
         // The number of changes to the data of this znode.
         jgen.writeNumberField(FIELD_VERSION, stat.getVersion());
-
-        if (data != null) {
-            jgen.writeBinaryField(FIELD_DATA, data);
-        } else {
-            jgen.writeNullField(FIELD_DATA);
-        }
-
-        jgen.writeArrayFieldStart(FIELD_ACLS);
-        for (ACL acl : acls) {
-            jgen.writeStartObject();
-            jgen.writeStringField(FIELD_ACL_ID, acl.getId().getId());
-            jgen.writeStringField(FIELD_ACL_SCHEME, acl.getId().getScheme());
-            jgen.writeNumberField(FIELD_ACL_PERMS, acl.getPerms());
-            jgen.writeEndObject();
-        }
-        jgen.writeEndArray();
-
-        jgen.writeEndObject();
     }
 
     private static void usage(CmdLineParser parser, int exitCode) {
@@ -211,6 +381,58 @@ public class Backup {
             if (options.help) {
                 usage(parser, 0);
             }
+            if (options.dataDir != null) {
+                if (options.zkConnect != null) {
+                    throw CommonOptions.usageError(parser, "--data-dir can't be combined with -z");
+                }
+                if (options.async || options.parallelism > 1 || options.baselineFile != null || options.watch
+                        || options.autoTune || options.distributeReads) {
+                    throw CommonOptions.usageError(parser, "--data-dir can't be combined with --async, --parallel, "
+                            + "--incremental, --watch, --auto-tune or --distribute-reads");
+                }
+                try {
+                    options.getZxid();
+                } catch (NumberFormatException e) {
+                    throw CommonOptions.usageError(parser, "Invalid zxid: " + options.zxid);
+                }
+            } else {
+                options.requireZkConnect(parser);
+                if (options.dataLogDir != null || options.zxid != null) {
+                    throw CommonOptions.usageError(parser, "--data-log-dir and --zxid require --data-dir");
+                }
+            }
+            if (options.async && options.parallelism > 1) {
+                throw CommonOptions.usageError(parser, "--async can't be combined with --parallel");
+            }
+            if (options.baselineFile != null && (options.async || options.parallelism > 1)) {
+                throw CommonOptions.usageError(parser, "--incremental can't be combined with --async or --parallel");
+            }
+            if (options.watch && (options.async || options.parallelism > 1 || options.baselineFile != null)) {
+                throw CommonOptions.usageError(parser, "--watch can't be combined with --async, --parallel or "
+                        + "--incremental");
+            }
+            if (options.distributeReads && (options.async || options.baselineFile != null || options.watch)) {
+                throw CommonOptions.usageError(parser, "--distribute-reads can't be combined with --async, "
+                        + "--incremental or --watch (it reads with a session per server)");
+            }
+            if (options.skipLeader && !options.distributeReads) {
+                throw CommonOptions.usageError(parser, "--skip-leader requires --distribute-reads");
+            }
+            if (options.watch && "-".equals(options.outputFile)) {
+                throw CommonOptions.usageError(parser, "--watch requires an output file");
+            }
+            if (options.watch && options.statsJsonFile != null) {
+                throw CommonOptions.usageError(parser, "--stats-json can't be combined with --watch");
+            }
+            if (options.checkpointIntervalSecs > 0 || options.resume) {
+                if ("-".equals(options.outputFile)) {
+                    throw CommonOptions.usageError(parser, "--checkpoint-interval and --resume require an output file");
+                }
+                if (options.dedup || options.watch || options.baselineFile != null) {
+                    throw CommonOptions.usageError(parser, "--checkpoint-interval and --resume can't be combined with "
+                            + "--dedup, --watch or --incremental");
+                }
+            }
         } catch (CmdLineException e) {
             if (!options.help) {
                 System.err.println(e.getLocalizedMessage());
@@ -220,21 +442,57 @@ public class Backup {
         if (options.verbose) {
             LoggingUtils.enableDebugLogging(Backup.class.getPackage().getName());
         }
+        if (options.distributeReads) {
+            options.readServers = EnsembleServers.getReadServers(options.zkConnect,
+                    Ints.checkedCast(options.zkConnectTimeoutMs), options.skipLeader);
+        }
+        if (options.autoTune) {
+            TreeProfile.read(options, 1).tune(options);
+        }
+        if (options.readServers != null && options.parallelism == 1) {
+            options.parallelism = options.readServers.size();
+        }
+        options.metrics.registerMBeans("Backup");
+        if (options.watch) {
+            new ContinuousBackup(options).run();
+            return;
+        }
         Backup backup = new Backup(options);
-        OutputStream os;
+        final File checkpointFile = options.getCheckpointFile(options.outputFile, ".checkpoint");
+        Checkpoint checkpoint = null;
+        if (options.resume) {
+            checkpoint = Checkpoint.read(checkpointFile);
+            checkpoint.validate(options.outputFile, options.format, options.compression().getCodec(),
+                    options.rootPath);
+            checkpoint.truncate(new File(options.outputFile));
+            options.resumeAfter = checkpoint.path;
+            LOGGER.info("Resuming backup after: {} ({} znodes written)", checkpoint.path, checkpoint.znodes);
+        }
+        final FileOutputStream file;
+        final CountingOutputStream counter;
         if ("-".equals(options.outputFile)) {
-            os = System.out;
+            file = null;
+            counter = new CountingOutputStream(System.out);
         } else {
-            os = new BufferedOutputStream(new FileOutputStream(options.outputFile));
+            file = new FileOutputStream(options.outputFile, checkpoint != null);
+            counter = new CountingOutputStream(new BufferedOutputStream(file));
         }
+        OutputStream os = counter;
         try {
-            if (options.compress) {
-                os = new GZIPOutputStream(os);
+            os = options.compression().wrap(os, checkpoint != null);
+            BackupWriter writer = (checkpoint != null) ? options.format.resumeWriter(os, options.prettyPrint)
+                    : options.format.createWriter(os, options.prettyPrint, options.dedup);
+            if (file != null && (options.checkpointIntervalSecs > 0 || options.resume)) {
+                writer = new CheckpointWriter(writer, new Checkpointer(checkpointFile, options.checkpointIntervalSecs),
+                        options, os, counter, file, checkpoint);
             }
-            backup.backup(os);
+            backup.backup(writer);
         } finally {
             os.flush();
             Closeables.close(os, true);
+            options.metrics.add(Metrics.OUTPUT_BYTES, counter.getCount());
+            options.writeStats(LOGGER, null);
+            options.metrics.unregisterMBeans();
         }
     }
 }
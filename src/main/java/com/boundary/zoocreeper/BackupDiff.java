@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Compares a backup with the znodes read from ZooKeeper, writing a line for each znode which was added, removed or
+ * changed since the backup:
+ * <pre>
+ * + /path         only in ZooKeeper
+ * - /path         only in the backup (a restore would create it)
+ * ~ /path data    data and/or ACLs differ (a restore with --overwrite-existing would update them)
+ * </pre>
+ * Both sides are read in sorted depth-first order, so the comparison is a merge join which only keeps the current
+ * znode of each in memory. The znodes of the backup are filtered by a {@link SubtreeReader}, the same way a
+ * {@link Backup} filters the znodes it reads from ZooKeeper.
+ */
+class BackupDiff {
+    private final CommonOptions options;
+    private final Writer out;
+    private final DiffStats stats = new DiffStats();
+
+    BackupDiff(CommonOptions options, Writer out) {
+        this.options = options;
+        this.out = out;
+    }
+
+    DiffStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Compares the backup with the znodes read from ZooKeeper (which must be the backup of the same root path).
+     */
+    void diff(BackupReader backupFile, BackupReader live) throws IOException {
+        final BackupReader backup = new SubtreeReader(backupFile, options);
+        BackupZNode expected = backup.next();
+        BackupZNode actual = live.next();
+        while (expected != null || actual != null) {
+            final int cmp;
+            if (actual == null) {
+                cmp = -1;
+            } else if (expected == null) {
+                cmp = 1;
+            } else {
+                cmp = ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(expected.path, actual.path);
+            }
+            if (cmp < 0) {
+                report('-', expected.path, null);
+                stats.removed++;
+                expected = backup.next();
+            } else if (cmp > 0) {
+                report('+', actual.path, null);
+                stats.added++;
+                actual = live.next();
+            } else {
+                compare(expected, actual);
+                expected = backup.next();
+                actual = live.next();
+            }
+        }
+        out.flush();
+    }
+
+    private void compare(BackupZNode expected, BackupZNode actual) throws IOException {
+        final boolean dataChanged = Overwriter.dataChanged(expected, actual.data);
+        final boolean aclsChanged = Overwriter.aclsChanged(expected, actual.acls);
+        if (dataChanged && aclsChanged) {
+            report('~', expected.path, "data,acls");
+        } else if (dataChanged) {
+            report('~', expected.path, "data");
+        } else if (aclsChanged) {
+            report('~', expected.path, "acls");
+        } else {
+            stats.unchanged++;
+        }
+        if (dataChanged) {
+            stats.dataChanged++;
+        }
+        if (aclsChanged) {
+            stats.aclsChanged++;
+        }
+    }
+
+    private void report(char change, String path, String detail) throws IOException {
+        out.write(change);
+        out.write(' ');
+        out.write(path);
+        if (detail != null) {
+            out.write(' ');
+            out.write(detail);
+        }
+        out.write('\n');
+    }
+}
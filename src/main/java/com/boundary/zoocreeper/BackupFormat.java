@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Formats of a backup file.
+ */
+enum BackupFormat {
+    /**
+     * JSON object keyed by path, with base64 encoded data.
+     */
+    JSON {
+        @Override
+        BackupWriter createWriter(OutputStream os, boolean prettyPrint, boolean dedup) throws IOException {
+            return new JsonBackupWriter(os, prettyPrint, dedup);
+        }
+
+        @Override
+        BackupWriter resumeWriter(OutputStream os, boolean prettyPrint) throws IOException {
+            return new JsonBackupWriter(os, prettyPrint, false, true);
+        }
+
+        @Override
+        BackupReader createReader(InputStream is, boolean incremental) throws IOException {
+            return new JsonBackupReader(is, incremental);
+        }
+    },
+    /**
+     * Length-prefixed records with varint encoded stats and raw data (see {@link BinaryFormat}).
+     */
+    BINARY {
+        @Override
+        BackupWriter createWriter(OutputStream os, boolean prettyPrint, boolean dedup) throws IOException {
+            return new BinaryBackupWriter(os, dedup);
+        }
+
+        @Override
+        BackupWriter resumeWriter(OutputStream os, boolean prettyPrint) throws IOException {
+            return new BinaryBackupWriter(os, false, true);
+        }
+
+        @Override
+        BackupReader createReader(InputStream is, boolean incremental) {
+            return new BinaryBackupReader(is, incremental);
+        }
+    };
+
+    /**
+     * Creates a writer for a backup in this format.
+     *
+     * @param prettyPrint True to make the output human readable (if supported by the format).
+     * @param dedup True to write repeated data once (see {@link PayloadDictionary}).
+     */
+    abstract BackupWriter createWriter(OutputStream os, boolean prettyPrint, boolean dedup) throws IOException;
+
+    /**
+     * Creates a writer which appends to a backup in this format which was truncated after a complete znode (see
+     * {@link Checkpoint}). Deduplicated backups can't be resumed, since the ids already written aren't known.
+     */
+    abstract BackupWriter resumeWriter(OutputStream os, boolean prettyPrint) throws IOException;
+
+    /**
+     * Creates a reader for a backup in this format.
+     *
+     * @param incremental True if the backup may be an incremental backup.
+     */
+    abstract BackupReader createReader(InputStream is, boolean incremental) throws IOException;
+
+    /**
+     * Opens a backup file ("-" for stdin) in this format.
+     */
+    BackupReader open(String file, Compression compression, boolean incremental) throws IOException {
+        InputStream is = null;
+        try {
+            if ("-".equals(file)) {
+                is = new BufferedInputStream(System.in);
+            } else {
+                is = new BufferedInputStream(new FileInputStream(file));
+            }
+            is = compression.wrap(is);
+            return createReader(is, incremental);
+        } catch (IOException e) {
+            Closeables.close(is, true);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.IOException;
+
+/**
+ * Applies an incremental backup to a full backup, producing the znodes of the resulting full backup in order.
+ * <p>
+ * Both backups are read in sorted depth-first order, so the merge only keeps the current znode of each in memory.
+ */
+class BackupMerger implements BackupReader {
+    private final BackupReader baseline;
+    private final BackupReader delta;
+    private BackupZNode nextBaseline;
+    private BackupZNode nextDelta;
+    private String deletedPath;
+
+    BackupMerger(BackupReader baseline, BackupReader delta) throws IOException {
+        this.baseline = baseline;
+        this.delta = delta;
+        this.nextBaseline = baseline.next();
+        this.nextDelta = delta.next();
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        while (nextBaseline != null || nextDelta != null) {
+            final int cmp;
+            if (nextDelta == null) {
+                cmp = -1;
+            } else if (nextBaseline == null) {
+                cmp = 1;
+            } else {
+                cmp = ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(nextBaseline.path, nextDelta.path);
+            }
+            if (cmp < 0) {
+                final BackupZNode zNode = nextBaseline;
+                nextBaseline = baseline.next();
+                if (deletedPath != null && ZooKeeperPaths.isDescendant(zNode.path, deletedPath)) {
+                    continue;
+                }
+                return zNode;
+            }
+            final BackupZNode previous;
+            if (cmp == 0) {
+                previous = nextBaseline;
+                nextBaseline = baseline.next();
+            } else {
+                previous = null;
+            }
+            final BackupZNode zNode = nextDelta;
+            nextDelta = delta.next();
+            if (zNode.isDeleted()) {
+                // Skip the rest of the deleted subtree
+                deletedPath = zNode.path;
+            } else if (zNode.hasContent()) {
+                return zNode;
+            } else if (previous == null) {
+                throw new IOException("Znode not found in baseline: " + zNode.path);
+            } else {
+                return new BackupZNode(zNode.path, zNode.stat, previous.data, previous.acls);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            baseline.close();
+        } finally {
+            delta.close();
+        }
+    }
+}
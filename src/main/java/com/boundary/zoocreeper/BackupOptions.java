@@ -15,7 +15,12 @@
  */
 package com.boundary.zoocreeper;
 
+import org.apache.zookeeper.ZooKeeper;
 import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
 
 /**
 * Options to the backup command.
@@ -29,11 +34,76 @@ class BackupOptions extends CommonOptions {
             metaVar = "<num_retries>")
     int numRetries = 5;
 
+    @Option(name = "--parallel", usage = "Number of ZooKeeper sessions used to back up subtrees in parallel",
+            required = false, metaVar = "<num_sessions>")
+    int parallelism = 1;
+
+    @Option(name = "--distribute-reads", usage = "Read from each server of the ensemble with its own session, "
+            + "preferring observers (default: one session per server)", required = false)
+    boolean distributeReads = false;
+
+    @Option(name = "--skip-leader", usage = "Don't read from the leader with --distribute-reads", required = false)
+    boolean skipLeader = false;
+
+    @Option(name = "--incremental", usage = "Only back up znodes which changed since a previous backup, writing a "
+            + "delta which can be merged with it", required = false, metaVar = "<baseline_file>")
+    String baselineFile = null;
+
+    @Option(name = "--watch", usage = "Keep running, appending changes to a journal and periodically compacting it "
+            + "into the backup file", required = false)
+    boolean watch = false;
+
+    @Option(name = "--journal", usage = "Journal file used with --watch (default: <filename>.journal)",
+            required = false, metaVar = "<journal_file>")
+    String journalFile = null;
+
+    @Option(name = "--compact-interval", usage = "Seconds between compactions of the journal with --watch",
+            required = false, metaVar = "<interval_in_secs>")
+    long compactIntervalSecs = 3600;
+
+    @Option(name = "--data-dir", usage = "Back up from the snapshots and transaction logs in a ZooKeeper server's "
+            + "dataDir instead of connecting to ZooKeeper", required = false, metaVar = "<data_dir>")
+    String dataDir = null;
+
+    @Option(name = "--data-log-dir", usage = "ZooKeeper server's dataLogDir, if its transaction logs aren't in "
+            + "--data-dir", required = false, metaVar = "<data_log_dir>")
+    String dataLogDir = null;
+
+    @Option(name = "--zxid", usage = "Back up from --data-dir as of this zxid (e.g. 0x100000a2f, default: the last "
+            + "logged transaction)", required = false, metaVar = "<zxid>")
+    String zxid = null;
+
     @Option(name = "-f", aliases = { "--file" }, usage = "Output file for backup data (default: stdout)",
             required = false, metaVar = "<filename>")
     String outputFile = "-";
 
+    @Option(name = "--dedup", usage = "Write repeated znode data and ACL lists once and refer to them by id",
+            required = false)
+    boolean dedup = false;
+
     @Option(name = "--pretty-print", usage = "Pretty printing of JSON output", required = false)
     boolean prettyPrint = false;
 
+    // Servers read from with --distribute-reads, in order of preference
+    List<String> readServers = null;
+
+    /**
+     * Returns the --zxid (or Long.MAX_VALUE if it wasn't given).
+     *
+     * @throws NumberFormatException If the zxid isn't a decimal, hexadecimal (0x) or octal number.
+     */
+    long getZxid() {
+        return (zxid != null) ? Long.decode(zxid) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates the connection used by one of the sessions of a backup, which is made to a single server (assigned to
+     * the sessions in turn) with --distribute-reads.
+     */
+    ZooKeeper createZooKeeper(Logger logger, int session) throws IOException, InterruptedException {
+        if (readServers == null) {
+            return createZooKeeper(logger);
+        }
+        return createZooKeeper(logger, readServers.get(session % readServers.size()));
+    }
 }
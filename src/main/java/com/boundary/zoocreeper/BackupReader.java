@@ -0,0 +1,30 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the znodes of a backup in the sorted depth-first order they were written in.
+ */
+interface BackupReader extends Closeable {
+
+    /**
+     * Returns the next znode in the backup, or null at the end of the backup.
+     */
+    BackupZNode next() throws IOException;
+}
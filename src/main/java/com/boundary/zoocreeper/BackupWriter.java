@@ -0,0 +1,43 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Writes the znodes of a backup, which must be written in sorted depth-first order.
+ */
+interface BackupWriter extends Closeable, Flushable {
+
+    /**
+     * Writes a znode (or an incremental backup entry).
+     */
+    void write(BackupZNode zNode) throws IOException;
+
+    /**
+     * Writes the znodes buffered by this writer to the underlying stream, and flushes it.
+     */
+    @Override
+    void flush() throws IOException;
+
+    /**
+     * Ends the backup and closes the underlying stream.
+     */
+    @Override
+    void close() throws IOException;
+}
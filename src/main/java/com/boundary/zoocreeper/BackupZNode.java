@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+
+/**
+ * A znode read from ZooKeeper or from a backup.
+ * <p>
+ * Entries of an incremental backup have no ACLs if only the stat of the znode changed, and no stat if the znode was
+ * deleted.
+ */
+class BackupZNode {
+    final String path;
+    final Stat stat;
+    final byte[] data;
+    final List<ACL> acls;
+
+    BackupZNode(String path, Stat stat, byte[] data, List<ACL> acls) {
+        this.path = path;
+        this.stat = stat;
+        this.data = data;
+        this.acls = acls;
+    }
+
+    /**
+     * Returns true if this is an incremental backup entry for a deleted znode.
+     */
+    boolean isDeleted() {
+        return stat == null;
+    }
+
+    /**
+     * Returns false if this is an incremental backup entry where only the stat changed.
+     */
+    boolean hasContent() {
+        return acls != null;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Utf8;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Restores znodes in batches using {@link ZooKeeper#multi(Iterable)} transactions.
+ * <p>
+ * Consecutive znodes are created in a single transaction of up to {@link RestoreOptions#batchSize} operations, which
+ * is also kept under {@link RestoreOptions#maxBatchBytes} so the request fits in the server's {@code jute.maxbuffer}.
+ * If a transaction fails (e.g. because one of the znodes already exists), the znodes in that batch are restored one
+ * at a time, and existing znodes are overwritten in batches by {@link Overwriter} when
+ * {@link RestoreOptions#overwriteExisting} is set.
+ */
+class BatchedRestore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedRestore.class);
+
+    /**
+     * Estimated serialized size of the fixed fields of a request operation.
+     */
+    private static final int OP_OVERHEAD_BYTES = 32;
+
+    private final RestoreOptions options;
+    private final ZooKeeper zk;
+    private final RestoreStats stats;
+    private final PathCache existingPaths;
+    private final Overwriter overwriter;
+    private final List<BackupZNode> batch = Lists.newArrayList();
+    private final Set<String> batchPaths = Sets.newHashSet();
+    private int batchBytes = 0;
+
+    BatchedRestore(RestoreOptions options, ZooKeeper zk, RestoreStats stats, PathCache existingPaths) {
+        Preconditions.checkArgument(options.batchSize > 0, "batchSize must be positive");
+        this.options = options;
+        this.zk = zk;
+        this.stats = stats;
+        this.existingPaths = existingPaths;
+        this.overwriter = new Overwriter(zk, stats);
+    }
+
+    /**
+     * Adds a znode to the current batch, restoring the current batch first if it is full.
+     */
+    void add(BackupZNode zNode) throws KeeperException, InterruptedException {
+        final String parentPath = ZooKeeperPaths.getParentPath(zNode.path);
+        if (!batchPaths.contains(parentPath)) {
+            Restore.createPath(zk, existingPaths, parentPath);
+        }
+        final int size = estimateCreateSize(zNode);
+        if (!batch.isEmpty() && (batch.size() >= options.batchSize || batchBytes + size > options.maxBatchBytes)) {
+            flush();
+        }
+        batch.add(zNode);
+        batchPaths.add(zNode.path);
+        batchBytes += size;
+    }
+
+    /**
+     * Restores all znodes in the current batch.
+     */
+    void flush() throws KeeperException, InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<Op> ops = Lists.newArrayListWithCapacity(batch.size());
+        for (BackupZNode zNode : batch) {
+            ops.add(Op.create(zNode.path, zNode.data, zNode.acls, CreateMode.PERSISTENT));
+        }
+        try {
+            zk.multi(ops);
+            for (BackupZNode zNode : batch) {
+                LOGGER.info("Created node: {}", zNode.path);
+                existingPaths.add(zNode.path);
+            }
+            stats.created += batch.size();
+        } catch (KeeperException e) {
+            LOGGER.debug("Batch of {} znodes failed ({}), restoring individually", batch.size(), e.code());
+            restoreIndividually();
+        }
+        batch.clear();
+        batchPaths.clear();
+        batchBytes = 0;
+    }
+
+    private void restoreIndividually() throws KeeperException, InterruptedException {
+        final List<BackupZNode> existing = Lists.newArrayList();
+        final Set<String> toOverwrite = Sets.newHashSet();
+        for (BackupZNode zNode : batch) {
+            if (toOverwrite.contains(ZooKeeperPaths.getParentPath(zNode.path))) {
+                // The parent's ACLs may be what allows creating this node
+                overwriter.overwrite(existing, options.batchSize, options.maxBatchBytes);
+                existing.clear();
+                toOverwrite.clear();
+            }
+            try {
+                zk.create(zNode.path, zNode.data, zNode.acls, CreateMode.PERSISTENT);
+                LOGGER.info("Created node: {}", zNode.path);
+                stats.created++;
+            } catch (NodeExistsException e) {
+                if (options.overwriteExisting) {
+                    existing.add(zNode);
+                    toOverwrite.add(zNode.path);
+                } else {
+                    LOGGER.warn("Node already exists: {}", zNode.path);
+                    stats.existing++;
+                }
+            }
+            existingPaths.add(zNode.path);
+        }
+        if (!existing.isEmpty()) {
+            overwriter.overwrite(existing, options.batchSize, options.maxBatchBytes);
+        }
+    }
+
+    static int estimateSetDataSize(BackupZNode zNode) {
+        return OP_OVERHEAD_BYTES + Utf8.encodedLength(zNode.path) + ((zNode.data != null) ? zNode.data.length : 0);
+    }
+
+    private static int estimateCreateSize(BackupZNode zNode) {
+        int size = estimateSetDataSize(zNode);
+        for (ACL acl : zNode.acls) {
+            size += OP_OVERHEAD_BYTES + Utf8.encodedLength(acl.getId().getScheme())
+                    + Utf8.encodedLength(acl.getId().getId());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a backup in the {@link BinaryFormat}.
+ */
+class BinaryBackupReader implements BackupReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryBackupReader.class);
+
+    private final DataInputStream is;
+    private final boolean incremental;
+    /**
+     * Deduplicated data, by id.
+     */
+    private final List<byte[]> payloads = Lists.newArrayList();
+    /**
+     * Deduplicated ACL lists, by id.
+     */
+    private final List<List<ACL>> aclLists = Lists.newArrayList();
+    private final AclInterner aclInterner = new AclInterner();
+    private boolean aclTable = false;
+    private boolean started = false;
+    private boolean finished = false;
+    private byte[] body = new byte[1024];
+    private int bodyLength;
+    private int pos;
+
+    /**
+     * Creates a reader for the backup in the specified stream.
+     *
+     * @param incremental True if the backup may be an incremental backup.
+     */
+    BinaryBackupReader(InputStream is, boolean incremental) {
+        this(is, incremental, true);
+    }
+
+    /**
+     * Creates a reader for the backup in the specified stream.
+     *
+     * @param incremental True if the backup may be an incremental backup.
+     * @param header False if the stream is positioned at a record instead of the start of the backup.
+     */
+    BinaryBackupReader(InputStream is, boolean incremental, boolean header) {
+        this.is = new DataInputStream(is);
+        this.incremental = incremental;
+        this.started = !header;
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        try {
+            if (!started) {
+                readHeader();
+                started = true;
+            }
+            while (!finished) {
+                final int type = is.readUnsignedByte();
+                if (type == BinaryFormat.RECORD_END) {
+                    finished = true;
+                    break;
+                }
+                readBody();
+                switch (type) {
+                    case BinaryFormat.RECORD_ZNODE:
+                        return readZNode(false);
+                    case BinaryFormat.RECORD_ZNODE_REF:
+                        return readZNode(true);
+                    case BinaryFormat.RECORD_DATA:
+                        payloads.add(readBytes(bodyLength));
+                        break;
+                    case BinaryFormat.RECORD_ACLS:
+                        aclLists.add(readAcls());
+                        break;
+                    case BinaryFormat.RECORD_STAT:
+                        checkIncremental();
+                        return new BackupZNode(readString(), readStat(), null, null);
+                    case BinaryFormat.RECORD_DELETED:
+                        checkIncremental();
+                        return new BackupZNode(readString(), null, null, null);
+                    default:
+                        LOGGER.debug("Ignored record type: {}", type);
+                }
+            }
+            return null;
+        } catch (EOFException e) {
+            throw new IOException("Truncated backup", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        is.close();
+    }
+
+    private void readHeader() throws IOException {
+        final byte[] magic = new byte[BinaryFormat.MAGIC.length];
+        is.readFully(magic);
+        if (!Arrays.equals(magic, BinaryFormat.MAGIC)) {
+            throw new IOException("Not a binary backup");
+        }
+        final long version = BinaryFormat.readVarLong(is);
+        if (version > BinaryFormat.VERSION_ACL_TABLE) {
+            throw new IOException("Unsupported binary backup version: " + version);
+        }
+        aclTable = version >= BinaryFormat.VERSION_ACL_TABLE;
+    }
+
+    private void checkIncremental() throws IOException {
+        if (!incremental) {
+            throw new IOException("Unexpected incremental backup entry");
+        }
+    }
+
+    private void readBody() throws IOException {
+        bodyLength = Ints.checkedCast(BinaryFormat.readVarLong(is));
+        if (bodyLength > body.length) {
+            body = new byte[Math.max(bodyLength, body.length * 2)];
+        }
+        is.readFully(body, 0, bodyLength);
+        pos = 0;
+    }
+
+    private BackupZNode readZNode(boolean dataRef) throws IOException {
+        final String path = readString();
+        final Stat stat = readStat();
+        final byte[] data;
+        if (dataRef) {
+            final long dataId = readVarLong();
+            if (dataId >= payloads.size()) {
+                throw new IOException("Unknown data reference: " + dataId);
+            }
+            data = payloads.get((int) dataId);
+        } else {
+            final int dataLength = Ints.checkedCast(readVarLong());
+            if (dataLength == 0) {
+                data = null;
+            } else {
+                data = readBytes(dataLength - 1);
+            }
+        }
+        final List<ACL> acls;
+        final long aclsRef = aclTable ? readVarLong() : 0;
+        if (aclsRef == 0) {
+            acls = readAcls();
+        } else if (aclsRef > aclLists.size()) {
+            throw new IOException("Unknown ACLs reference: " + (aclsRef - 1));
+        } else {
+            acls = aclLists.get((int) aclsRef - 1);
+        }
+        return new BackupZNode(path, stat, data, acls);
+    }
+
+    private List<ACL> readAcls() throws IOException {
+        final int numAcls = Ints.checkedCast(readVarLong());
+        final List<ACL> acls = Lists.newArrayListWithCapacity(Math.min(numAcls, 16));
+        for (int i = 0; i < numAcls; i++) {
+            final int perms = Ints.checkedCast(readVarLong());
+            final String scheme = readString();
+            final String id = readString();
+            acls.add(aclInterner.acl(perms, scheme, id));
+        }
+        return aclInterner.intern(acls);
+    }
+
+    private Stat readStat() throws IOException {
+        final Stat stat = new Stat();
+        stat.setCzxid(readZigZag());
+        stat.setMzxid(readZigZag());
+        stat.setCtime(readZigZag());
+        stat.setMtime(readZigZag());
+        stat.setVersion(Ints.checkedCast(readZigZag()));
+        stat.setCversion(Ints.checkedCast(readZigZag()));
+        stat.setAversion(Ints.checkedCast(readZigZag()));
+        stat.setEphemeralOwner(readZigZag());
+        stat.setPzxid(readZigZag());
+        stat.setNumChildren(Ints.checkedCast(readZigZag()));
+        return stat;
+    }
+
+    private String readString() throws IOException {
+        final int length = Ints.checkedCast(readVarLong());
+        checkRemaining(length);
+        final String s = new String(body, pos, length, Charsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        checkRemaining(length);
+        final byte[] bytes = Arrays.copyOfRange(body, pos, pos + length);
+        pos += length;
+        return bytes;
+    }
+
+    private long readZigZag() throws IOException {
+        return BinaryFormat.decodeZigZag(readVarLong());
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkRemaining(1);
+            final byte b = body[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private void checkRemaining(int length) throws IOException {
+        if (length < 0 || pos + length > bodyLength) {
+            throw new IOException("Malformed record");
+        }
+    }
+}
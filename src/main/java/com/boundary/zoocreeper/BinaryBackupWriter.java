@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingOutputStream;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes a backup in the {@link BinaryFormat}, followed by an index of its records.
+ * <p>
+ * Like the block index of a sorted table, the index has an entry for the first record written after every
+ * {@link #INDEX_INTERVAL} bytes, along with the offsets of the records of its ancestors.
+ */
+class BinaryBackupWriter implements BackupWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryBackupWriter.class);
+    static final int INDEX_INTERVAL = 64 * 1024;
+
+    private final CountingOutputStream os;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+    /**
+     * Offsets of the records of the ancestors of the next record, with the parent on top.
+     */
+    private final Deque<IndexEntry> ancestors = new ArrayDeque<IndexEntry>();
+    private final List<IndexEntry> index = Lists.newArrayList();
+    private long nextIndexOffset = 0;
+    private final PayloadDictionary dictionary;
+    private final AclTable aclTable;
+    private final boolean indexed;
+    private int definedIds = 0;
+
+    BinaryBackupWriter(OutputStream os, boolean dedup) throws IOException {
+        this(os, dedup, false);
+    }
+
+    /**
+     * @param resumed True to continue a backup which was truncated after a complete record (see
+     *                {@link Checkpoint}). The offsets of the records already written aren't known, so the backup is
+     *                written without an index.
+     */
+    BinaryBackupWriter(OutputStream os, boolean dedup, boolean resumed) throws IOException {
+        this.os = new CountingOutputStream(os);
+        this.dictionary = dedup ? new PayloadDictionary() : null;
+        this.aclTable = dedup ? new AclTable() : null;
+        this.indexed = !resumed;
+        if (!resumed) {
+            this.os.write(BinaryFormat.MAGIC);
+            BinaryFormat.writeVarLong(this.os, dedup ? BinaryFormat.VERSION_ACL_TABLE : BinaryFormat.VERSION);
+        }
+    }
+
+    @Override
+    public void write(BackupZNode zNode) throws IOException {
+        updateIndex(zNode.path);
+        body.reset();
+        writeString(zNode.path);
+        final int type;
+        if (zNode.isDeleted()) {
+            type = BinaryFormat.RECORD_DELETED;
+        } else {
+            writeStat(zNode.stat);
+            if (!zNode.hasContent()) {
+                type = BinaryFormat.RECORD_STAT;
+            } else {
+                final int dataId = (dictionary != null) ? dictionary.lookup(zNode.data) : -1;
+                if (dataId < 0) {
+                    type = BinaryFormat.RECORD_ZNODE;
+                    writeBytes(zNode.data);
+                } else {
+                    if (dataId == definedIds) {
+                        os.write(BinaryFormat.RECORD_DATA);
+                        BinaryFormat.writeVarLong(os, zNode.data.length);
+                        os.write(zNode.data);
+                        definedIds++;
+                    }
+                    type = BinaryFormat.RECORD_ZNODE_REF;
+                    BinaryFormat.writeVarLong(body, dataId);
+                }
+                if (aclTable == null) {
+                    writeAcls(body, zNode.acls);
+                } else {
+                    writeAclsRef(zNode.acls);
+                }
+            }
+        }
+        os.write(type);
+        BinaryFormat.writeVarLong(os, body.size());
+        body.writeTo(os);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (dictionary != null) {
+                dictionary.log(LOGGER);
+            }
+            os.write(BinaryFormat.RECORD_END);
+            if (indexed) {
+                writeIndex();
+            }
+            os.flush();
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Writes a reference to a list of ACLs in the table, defining it first if it is new.
+     */
+    private void writeAclsRef(List<ACL> acls) throws IOException {
+        final int definedAcls = aclTable.size();
+        final int aclsId = aclTable.lookup(acls);
+        if (aclsId < 0) {
+            BinaryFormat.writeVarLong(body, 0);
+            writeAcls(body, acls);
+            return;
+        }
+        if (aclsId == definedAcls) {
+            final ByteArrayOutputStream definition = new ByteArrayOutputStream();
+            writeAcls(definition, acls);
+            os.write(BinaryFormat.RECORD_ACLS);
+            BinaryFormat.writeVarLong(os, definition.size());
+            definition.writeTo(os);
+        }
+        BinaryFormat.writeVarLong(body, aclsId + 1L);
+    }
+
+    private static void writeAcls(OutputStream out, List<ACL> acls) throws IOException {
+        BinaryFormat.writeVarLong(out, acls.size());
+        for (ACL acl : acls) {
+            BinaryFormat.writeVarLong(out, acl.getPerms());
+            BinaryFormat.writeString(out, acl.getId().getScheme());
+            BinaryFormat.writeString(out, acl.getId().getId());
+        }
+    }
+
+    private void updateIndex(String path) {
+        if (!indexed) {
+            return;
+        }
+        while (!ancestors.isEmpty() && !ZooKeeperPaths.isDescendant(path, ancestors.peek().path)) {
+            ancestors.pop();
+        }
+        final IndexEntry entry = new IndexEntry(path, os.getCount());
+        if (entry.offset >= nextIndexOffset) {
+            for (Iterator<IndexEntry> it = ancestors.descendingIterator(); it.hasNext(); ) {
+                entry.ancestorOffsets.add(it.next().offset);
+            }
+            index.add(entry);
+            nextIndexOffset = entry.offset + INDEX_INTERVAL;
+        }
+        ancestors.push(entry);
+    }
+
+    private void writeIndex() throws IOException {
+        final long indexOffset = os.getCount();
+        BinaryFormat.writeVarLong(os, index.size());
+        for (IndexEntry entry : index) {
+            BinaryFormat.writeString(os, entry.path);
+            BinaryFormat.writeVarLong(os, entry.offset);
+            BinaryFormat.writeVarLong(os, entry.ancestorOffsets.size());
+            for (long ancestorOffset : entry.ancestorOffsets) {
+                BinaryFormat.writeVarLong(os, ancestorOffset);
+            }
+        }
+        new DataOutputStream(os).writeLong(indexOffset);
+        os.write(BinaryFormat.INDEX_MAGIC);
+    }
+
+    private void writeStat(Stat stat) throws IOException {
+        BinaryFormat.writeZigZag(body, stat.getCzxid());
+        BinaryFormat.writeZigZag(body, stat.getMzxid());
+        BinaryFormat.writeZigZag(body, stat.getCtime());
+        BinaryFormat.writeZigZag(body, stat.getMtime());
+        BinaryFormat.writeZigZag(body, stat.getVersion());
+        BinaryFormat.writeZigZag(body, stat.getCversion());
+        BinaryFormat.writeZigZag(body, stat.getAversion());
+        BinaryFormat.writeZigZag(body, stat.getEphemeralOwner());
+        BinaryFormat.writeZigZag(body, stat.getPzxid());
+        BinaryFormat.writeZigZag(body, stat.getNumChildren());
+    }
+
+    private void writeString(String s) throws IOException {
+        BinaryFormat.writeString(body, s);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            BinaryFormat.writeVarLong(body, 0);
+        } else {
+            BinaryFormat.writeVarLong(body, bytes.length + 1L);
+            body.write(bytes);
+        }
+    }
+
+    private static class IndexEntry {
+        private final String path;
+        private final long offset;
+        private final List<Long> ancestorOffsets = Lists.newArrayListWithCapacity(0);
+
+        private IndexEntry(String path, long offset) {
+            this.path = path;
+            this.offset = offset;
+        }
+    }
+}
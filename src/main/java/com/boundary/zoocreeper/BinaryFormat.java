@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Constants and variable-length integer encoding of the binary backup format.
+ * <p>
+ * A backup starts with {@link #MAGIC} and the format {@link #VERSION} (as a varint), followed by one record per znode
+ * in sorted depth-first order and an {@link #RECORD_END} record. Each record is a type byte followed by the varint
+ * length of its body, so readers can skip record types they don't know. The body of a {@link #RECORD_ZNODE} record
+ * is:
+ * <ul>
+ * <li>path (varint length followed by UTF-8 bytes)</li>
+ * <li>czxid, mzxid, ctime, mtime, version, cversion, aversion, ephemeralOwner, pzxid and numChildren (zig-zag
+ * varints)</li>
+ * <li>data (varint length plus one, zero for null data, followed by the raw bytes)</li>
+ * <li>number of ACLs (varint), then the perms (varint), scheme and id (strings) of each ACL</li>
+ * </ul>
+ * Incremental backups also use {@link #RECORD_STAT} records (path and stat) and {@link #RECORD_DELETED} records
+ * (path).
+ * <p>
+ * Deduplicated backups (see {@link PayloadDictionary}) have version {@link #VERSION_DEDUP}, since older readers would
+ * skip their records. A {@link #RECORD_DATA} record (the raw bytes) defines the next payload id, and
+ * {@link #RECORD_ZNODE_REF} records are like {@link #RECORD_ZNODE} records with the id of the data (varint) in place
+ * of the data.
+ * <p>
+ * Deduplicated backups with version {@link #VERSION_ACL_TABLE} also write each distinct list of ACLs once (see
+ * {@link AclTable}): a {@link #RECORD_ACLS} record (the number of ACLs and each ACL, as in a znode record) defines the
+ * next ACL list id, and the ACLs of znode records are replaced by a varint which is zero if the ACLs follow, or the id
+ * of the ACL list plus one.
+ * <p>
+ * The end record may be followed by an index (see {@link IndexedBackupReader}): the number of entries (varint), then
+ * for each entry the path, the offset of its record, and the number and offsets of the records of its ancestors
+ * (varints). The file then ends with the offset of the index (8 bytes, big-endian) and {@link #INDEX_MAGIC}.
+ */
+final class BinaryFormat {
+    static final byte[] MAGIC = { 'Z', 'C', 'B', 'K' };
+    static final int VERSION = 1;
+    static final int VERSION_DEDUP = 2;
+    static final int VERSION_ACL_TABLE = 3;
+    static final byte[] INDEX_MAGIC = { 'Z', 'C', 'I', 'X' };
+    static final int INDEX_TRAILER_LENGTH = 8 + INDEX_MAGIC.length;
+
+    static final int RECORD_END = 0;
+    static final int RECORD_ZNODE = 1;
+    static final int RECORD_STAT = 2;
+    static final int RECORD_DELETED = 3;
+    static final int RECORD_DATA = 4;
+    static final int RECORD_ZNODE_REF = 5;
+    static final int RECORD_ACLS = 6;
+
+    private BinaryFormat() {}
+
+    static void writeVarLong(OutputStream os, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            os.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    static void writeZigZag(OutputStream os, long value) throws IOException {
+        writeVarLong(os, (value << 1) ^ (value >> 63));
+    }
+
+    static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeString(OutputStream os, String s) throws IOException {
+        final byte[] bytes = s.getBytes(Charsets.UTF_8);
+        writeVarLong(os, bytes.length);
+        os.write(bytes);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[Ints.checkedCast(readVarLong(in))];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses data in fixed size blocks on a pool of threads, writing the compressed blocks in order.
+ * <p>
+ * At most two blocks per thread are compressed at once, so a slow output stream blocks the writer instead of
+ * buffering the whole backup in memory.
+ */
+class BlockCompressingOutputStream extends FilterOutputStream {
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    private final Codec codec;
+    private final LatencyHistogram timer;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int length = 0;
+    private boolean written = false;
+    private boolean closed = false;
+
+    BlockCompressingOutputStream(OutputStream os, Codec codec, int threads) throws IOException {
+        this(os, codec, threads, null, false);
+    }
+
+    /**
+     * @param timer Histogram where the time taken to compress each block is recorded (or null).
+     * @param append True to append blocks to a stream truncated after a {@link #sync()}, without a header.
+     */
+    BlockCompressingOutputStream(OutputStream os, Codec codec, int threads, LatencyHistogram timer, boolean append)
+            throws IOException {
+        super(os);
+        this.codec = codec;
+        this.timer = timer;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("compress-%d").setDaemon(true).build());
+        this.maxPending = 2 * threads;
+        if (append) {
+            written = true;
+        } else {
+            codec.writeHeader(os);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[length++] = (byte) b;
+        if (length == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, BLOCK_SIZE - length);
+            System.arraycopy(b, off, buffer, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks which have been compressed. The current (partial) block is not compressed until it is full
+     * or the stream is closed, so the output is the same however the data was flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeBlock(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the current (partial) block and writes all the blocks, so the underlying stream ends at a block
+     * boundary where it can later be truncated and appended to.
+     */
+    void sync() throws IOException {
+        if (length > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeBlock(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (length > 0 || !written) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(pending.removeFirst());
+            }
+            codec.writeTrailer(out);
+            out.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPending) {
+            writeBlock(pending.removeFirst());
+        }
+        final byte[] data = buffer;
+        final int dataLength = length;
+        pending.addLast(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                final long start = System.nanoTime();
+                final byte[] block = codec.compressBlock(data, dataLength);
+                if (timer != null) {
+                    timer.record(start, dataLength, false);
+                }
+                return block;
+            }
+        }));
+        written = true;
+        buffer = new byte[BLOCK_SIZE];
+        length = 0;
+    }
+
+    private void writeBlock(Future<byte[]> block) throws IOException {
+        try {
+            out.write(block.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+}
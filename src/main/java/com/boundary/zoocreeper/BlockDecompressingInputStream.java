@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses the blocks written by {@link BlockCompressingOutputStream} on a pool of threads, reading ahead up to
+ * two blocks per thread.
+ */
+class BlockDecompressingInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Codec codec;
+    private final LatencyHistogram timer;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] block = new byte[0];
+    private int position = 0;
+    private boolean eof = false;
+
+    /**
+     * @param timer Histogram where the time taken to decompress each block is recorded (or null).
+     */
+    BlockDecompressingInputStream(InputStream is, Codec codec, int threads, LatencyHistogram timer) {
+        this.in = new DataInputStream(is);
+        this.codec = codec;
+        this.timer = timer;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("decompress-%d").setDaemon(true).build());
+        this.maxPending = 2 * threads;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Makes the next decompressed block current if the current one has been read, returning false at the end of
+     * the stream.
+     */
+    private boolean fill() throws IOException {
+        while (position == block.length) {
+            while (!eof && pending.size() < maxPending) {
+                final byte[] compressed = codec.readBlock(in);
+                if (compressed == null) {
+                    eof = true;
+                } else {
+                    pending.addLast(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            final long start = System.nanoTime();
+                            final byte[] data = codec.decompressBlock(compressed);
+                            if (timer != null) {
+                                timer.record(start, data.length, false);
+                            }
+                            return data;
+                        }
+                    }));
+                }
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                block = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to decompress block", e.getCause());
+            }
+            position = 0;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.google.common.base.Objects;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Progress of a backup or restore, saved periodically so an interrupted run can be resumed with --resume.
+ * <p>
+ * Backups and restores process znodes in sorted depth-first order, so progress is the last path which was completely
+ * processed: every znode up to and including it has been written to the backup (or restored). A backup checkpoint
+ * also records the length of the backup file at that point, along with a checksum of the bytes before it which is
+ * used to check that the partial backup is the one the checkpoint was written for.
+ */
+class Checkpoint {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String FIELD_FILE = "file";
+    private static final String FIELD_FORMAT = "format";
+    private static final String FIELD_CODEC = "codec";
+    private static final String FIELD_ROOT_PATH = "rootPath";
+    private static final String FIELD_PATH = "path";
+    private static final String FIELD_ZNODES = "znodes";
+    private static final String FIELD_OFFSET = "offset";
+    private static final String FIELD_TAIL_CRC = "tailCrc";
+    /**
+     * Number of bytes before the offset covered by the checksum.
+     */
+    private static final int TAIL_LENGTH = 4096;
+
+    /**
+     * The backup file (and the settings used to read or write it), which must be the same when resuming.
+     */
+    final String file;
+    final BackupFormat format;
+    final Codec codec;
+    final String rootPath;
+    /**
+     * Last path which was completely processed.
+     */
+    final String path;
+    final long znodes;
+    /**
+     * Length of the backup file written so far, or -1 for a restore.
+     */
+    final long offset;
+    final long tailCrc;
+
+    Checkpoint(String file, BackupFormat format, Codec codec, String rootPath, String path, long znodes, long offset,
+               long tailCrc) {
+        this.file = file;
+        this.format = format;
+        this.codec = codec;
+        this.rootPath = rootPath;
+        this.path = path;
+        this.znodes = znodes;
+        this.offset = offset;
+        this.tailCrc = tailCrc;
+    }
+
+    /**
+     * Checks that a run with the specified settings can be resumed from this checkpoint.
+     */
+    void validate(String file, BackupFormat format, Codec codec, String rootPath) throws IOException {
+        if (!this.file.equals(file) || this.format != format || this.codec != codec
+                || !this.rootPath.equals(rootPath)) {
+            throw new IOException(String.format("Checkpoint is for a different run: %s (%s, codec %s, root path %s)",
+                    this.file, this.format, this.codec, this.rootPath));
+        }
+    }
+
+    /**
+     * Truncates a partial backup file to the length recorded in this checkpoint, checking it is the same backup.
+     */
+    void truncate(File backupFile) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(backupFile, "rw");
+        try {
+            if (raf.length() < offset) {
+                throw new IOException(String.format("Backup file is shorter (%d bytes) than the checkpoint (%d bytes):"
+                        + " %s", raf.length(), offset, backupFile));
+            }
+            if (tailCrc(raf, offset) != tailCrc) {
+                throw new IOException("Backup file doesn't match the checkpoint: " + backupFile);
+            }
+            raf.setLength(offset);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the checksum of the bytes before the specified offset of a file.
+     */
+    static long tailCrc(RandomAccessFile raf, long offset) throws IOException {
+        final int length = (int) Math.min(offset, TAIL_LENGTH);
+        final byte[] tail = new byte[length];
+        raf.seek(offset - length);
+        raf.readFully(tail);
+        final CRC32 crc = new CRC32();
+        crc.update(tail);
+        return crc.getValue();
+    }
+
+    static long tailCrc(File file, long offset) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return tailCrc(raf, offset);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes this checkpoint to a temporary file which is synced and then renamed over the checkpoint file, so a crash
+     * leaves either the previous checkpoint or this one.
+     */
+    void write(File checkpointFile) throws IOException {
+        final File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        final FileOutputStream os = new FileOutputStream(tmpFile);
+        try {
+            final JsonGenerator jgen = JSON_FACTORY.createGenerator(os, JsonEncoding.UTF8);
+            jgen.setPrettyPrinter(new DefaultPrettyPrinter());
+            jgen.writeStartObject();
+            jgen.writeStringField(FIELD_FILE, file);
+            jgen.writeStringField(FIELD_FORMAT, format.name());
+            if (codec != null) {
+                jgen.writeStringField(FIELD_CODEC, codec.name());
+            }
+            jgen.writeStringField(FIELD_ROOT_PATH, rootPath);
+            jgen.writeStringField(FIELD_PATH, path);
+            jgen.writeNumberField(FIELD_ZNODES, znodes);
+            jgen.writeNumberField(FIELD_OFFSET, offset);
+            jgen.writeNumberField(FIELD_TAIL_CRC, tailCrc);
+            jgen.writeEndObject();
+            jgen.flush();
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmpFile.renameTo(checkpointFile)) {
+            throw new IOException("Failed to rename checkpoint: " + tmpFile);
+        }
+    }
+
+    static Checkpoint read(File checkpointFile) throws IOException {
+        final JsonParser jp = JSON_FACTORY.createParser(checkpointFile);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed checkpoint: " + checkpointFile);
+            }
+            String file = null;
+            BackupFormat format = null;
+            Codec codec = null;
+            String rootPath = null;
+            String path = null;
+            long znodes = 0;
+            long offset = -1;
+            long tailCrc = 0;
+            while (jp.nextToken() != JsonToken.END_OBJECT) {
+                jp.nextValue();
+                final String fieldName = jp.getCurrentName();
+                if (FIELD_FILE.equals(fieldName)) {
+                    file = jp.getValueAsString();
+                } else if (FIELD_FORMAT.equals(fieldName)) {
+                    format = BackupFormat.valueOf(jp.getValueAsString());
+                } else if (FIELD_CODEC.equals(fieldName)) {
+                    codec = Codec.valueOf(jp.getValueAsString());
+                } else if (FIELD_ROOT_PATH.equals(fieldName)) {
+                    rootPath = jp.getValueAsString();
+                } else if (FIELD_PATH.equals(fieldName)) {
+                    path = jp.getValueAsString();
+                } else if (FIELD_ZNODES.equals(fieldName)) {
+                    znodes = jp.getLongValue();
+                } else if (FIELD_OFFSET.equals(fieldName)) {
+                    offset = jp.getLongValue();
+                } else if (FIELD_TAIL_CRC.equals(fieldName)) {
+                    tailCrc = jp.getLongValue();
+                }
+            }
+            if (file == null || format == null || rootPath == null || path == null) {
+                throw new IOException("Incomplete checkpoint: " + checkpointFile);
+            }
+            return new Checkpoint(file, format, codec, rootPath, path, znodes, offset, tailCrc);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed checkpoint: " + checkpointFile, e);
+        } finally {
+            jp.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("path", path).add("znodes", znodes).add("offset", offset).toString();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a backup to a file, periodically saving a {@link Checkpoint} of the znodes written so far.
+ * <p>
+ * Before each checkpoint the writer and any compression are flushed (the current compressed block is ended early)
+ * and the file is synced, so the backup can be truncated to the length in the checkpoint and resumed.
+ */
+class CheckpointWriter implements BackupWriter {
+    private final BackupWriter writer;
+    private final Checkpointer checkpointer;
+    private final BackupOptions options;
+    private final OutputStream stream;
+    private final CountingOutputStream counter;
+    private final FileOutputStream file;
+    private final long baseOffset;
+    private long znodes;
+    private String lastPath = null;
+
+    /**
+     * @param stream Stream the writer writes to (a {@link BlockCompressingOutputStream} if compressing).
+     * @param counter Counts the bytes written to the file (below any compression).
+     * @param resumed Checkpoint of the run being resumed, or null.
+     */
+    CheckpointWriter(BackupWriter writer, Checkpointer checkpointer, BackupOptions options, OutputStream stream,
+                     CountingOutputStream counter, FileOutputStream file, Checkpoint resumed) {
+        this.writer = writer;
+        this.checkpointer = checkpointer;
+        this.options = options;
+        this.stream = stream;
+        this.counter = counter;
+        this.file = file;
+        this.baseOffset = (resumed != null) ? resumed.offset : 0;
+        this.znodes = (resumed != null) ? resumed.znodes : 0;
+    }
+
+    @Override
+    public void write(BackupZNode zNode) throws IOException {
+        writer.write(zNode);
+        znodes++;
+        lastPath = zNode.path;
+        if (checkpointer.isDue()) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        writer.flush();
+        if (stream instanceof BlockCompressingOutputStream) {
+            ((BlockCompressingOutputStream) stream).sync();
+        }
+        file.getFD().sync();
+        final long offset = baseOffset + counter.getCount();
+        checkpointer.save(new Checkpoint(options.outputFile, options.format, options.compression().getCodec(),
+                options.rootPath, lastPath, znodes, offset, Checkpoint.tailCrc(new File(options.outputFile), offset)));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        checkpointer.delete();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the {@link Checkpoint}s of a run to a file at a fixed interval.
+ */
+class Checkpointer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Checkpointer.class);
+
+    private final File file;
+    private final long intervalNanos;
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * @param intervalSecs Seconds between checkpoints, or 0 to only delete the checkpoint file at the end of the run.
+     */
+    Checkpointer(File file, long intervalSecs) {
+        this.file = file;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSecs);
+    }
+
+    /**
+     * Returns true if a checkpoint should be saved.
+     */
+    boolean isDue() {
+        return intervalNanos > 0 && System.nanoTime() - lastNanos >= intervalNanos;
+    }
+
+    void save(Checkpoint checkpoint) throws IOException {
+        checkpoint.write(file);
+        lastNanos = System.nanoTime();
+        LOGGER.info("Saved checkpoint: {}", checkpoint);
+    }
+
+    /**
+     * Deletes the checkpoint file once the run is complete.
+     */
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Failed to delete checkpoint: {}", file);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import org.iq80.snappy.Snappy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codecs for backup files. Data is compressed in independent blocks, so blocks can be compressed and
+ * decompressed in parallel (see {@link Compression}).
+ */
+enum Codec {
+    /**
+     * Gzip, with each block written as a separate gzip member. Like BGZF, the header of each member has an extra
+     * field holding the size of the member, so members can be found without decompressing them. The result is still
+     * a valid gzip file, and gzip files without the extra field are decompressed with {@link GZIPInputStream}.
+     */
+    GZIP {
+        private static final int HEADER_LENGTH = 20;
+        private static final int TRAILER_LENGTH = 8;
+        private static final int FLAG_EXTRA = 4;
+        private static final int OS_UNKNOWN = 255;
+        private static final int EXTRA_LENGTH = 8;
+        private static final int SUBFIELD_LENGTH = 4;
+
+        @Override
+        void writeHeader(OutputStream os) {
+        }
+
+        @Override
+        byte[] compressBlock(byte[] data, int length) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream(length / 2 + HEADER_LENGTH + TRAILER_LENGTH);
+            for (int i = 0; i < HEADER_LENGTH; i++) {
+                os.write(0);
+            }
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                final byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    os.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } finally {
+                deflater.end();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeIntLE(os, (int) crc.getValue());
+            writeIntLE(os, length);
+            final byte[] member = os.toByteArray();
+            final byte[] header = {
+                    (byte) GZIP_MAGIC[0], (byte) GZIP_MAGIC[1], 8 /* deflate */, FLAG_EXTRA,
+                    0, 0, 0, 0 /* mtime */, 0 /* xfl */, (byte) OS_UNKNOWN,
+                    EXTRA_LENGTH, 0, 'Z', 'C', SUBFIELD_LENGTH, 0, 0, 0, 0, 0 };
+            System.arraycopy(header, 0, member, 0, HEADER_LENGTH);
+            setIntLE(member, HEADER_LENGTH - SUBFIELD_LENGTH, member.length);
+            return member;
+        }
+
+        @Override
+        void writeTrailer(OutputStream os) {
+        }
+
+        @Override
+        InputStream createInputStream(InputStream is, int threads, LatencyHistogram timer) throws IOException {
+            final BufferedInputStream bis = new BufferedInputStream(is);
+            bis.mark(HEADER_LENGTH);
+            final byte[] header = new byte[HEADER_LENGTH];
+            final int read = ByteStreams.read(bis, header, 0, HEADER_LENGTH);
+            bis.reset();
+            if (read == HEADER_LENGTH && isBlockHeader(header)) {
+                return new BlockDecompressingInputStream(bis, this, threads, timer);
+            }
+            return new GZIPInputStream(bis);
+        }
+
+        @Override
+        byte[] readBlock(DataInputStream is) throws IOException {
+            final byte[] header = new byte[HEADER_LENGTH];
+            final int read = ByteStreams.read(is, header, 0, HEADER_LENGTH);
+            if (read == 0) {
+                return null;
+            }
+            if (read < HEADER_LENGTH) {
+                throw new EOFException("Truncated gzip member");
+            }
+            if (!isBlockHeader(header)) {
+                throw new IOException("Gzip member without block size");
+            }
+            final int length = getIntLE(header, HEADER_LENGTH - SUBFIELD_LENGTH);
+            if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+                throw new IOException("Invalid gzip block size: " + length);
+            }
+            final byte[] member = Arrays.copyOf(header, length);
+            is.readFully(member, HEADER_LENGTH, length - HEADER_LENGTH);
+            return member;
+        }
+
+        @Override
+        byte[] decompressBlock(byte[] block) throws IOException {
+            final int trailer = block.length - TRAILER_LENGTH;
+            final byte[] data = new byte[getIntLE(block, trailer + 4)];
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(block, HEADER_LENGTH, trailer - HEADER_LENGTH);
+                int length = 0;
+                while (length < data.length && !inflater.finished()) {
+                    final int n = inflater.inflate(data, length, data.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != data.length) {
+                    throw new IOException("Corrupt gzip block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt gzip block", e);
+            } finally {
+                inflater.end();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != getIntLE(block, trailer)) {
+                throw new IOException("Gzip block CRC mismatch");
+            }
+            return data;
+        }
+
+        private boolean isBlockHeader(byte[] header) {
+            return (header[0] & 0xFF) == GZIP_MAGIC[0] && (header[1] & 0xFF) == GZIP_MAGIC[1]
+                    && (header[3] & FLAG_EXTRA) != 0 && header[10] == EXTRA_LENGTH && header[11] == 0
+                    && header[12] == 'Z' && header[13] == 'C' && header[14] == SUBFIELD_LENGTH && header[15] == 0;
+        }
+    },
+    /**
+     * Snappy, which compresses less but is several times faster than gzip. Each block is the compressed length,
+     * uncompressed length and CRC-32 of the block (4 bytes each, big-endian) followed by the compressed data, and
+     * the stream ends with a zero length.
+     */
+    SNAPPY {
+        private final byte[] magic = { 'Z', 'C', 'S', 'N' };
+
+        @Override
+        void writeHeader(OutputStream os) throws IOException {
+            os.write(magic);
+        }
+
+        @Override
+        byte[] compressBlock(byte[] data, int length) {
+            final byte[] compressed = new byte[12 + Snappy.maxCompressedLength(length)];
+            final int compressedLength = Snappy.compress(data, 0, length, compressed, 12);
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            setInt(compressed, 0, compressedLength);
+            setInt(compressed, 4, length);
+            setInt(compressed, 8, (int) crc.getValue());
+            return Arrays.copyOf(compressed, 12 + compressedLength);
+        }
+
+        @Override
+        void writeTrailer(OutputStream os) throws IOException {
+            os.write(new byte[4]);
+        }
+
+        @Override
+        InputStream createInputStream(InputStream is, int threads, LatencyHistogram timer) throws IOException {
+            final byte[] header = new byte[magic.length];
+            ByteStreams.readFully(is, header);
+            if (!Arrays.equals(header, magic)) {
+                throw new IOException("Not a snappy compressed backup");
+            }
+            return new BlockDecompressingInputStream(is, this, threads, timer);
+        }
+
+        @Override
+        byte[] readBlock(DataInputStream is) throws IOException {
+            final int compressedLength = is.readInt();
+            if (compressedLength == 0) {
+                return null;
+            }
+            final byte[] block = new byte[12 + compressedLength];
+            setInt(block, 0, compressedLength);
+            is.readFully(block, 4, block.length - 4);
+            return block;
+        }
+
+        @Override
+        byte[] decompressBlock(byte[] block) throws IOException {
+            final byte[] data = new byte[getInt(block, 4)];
+            final int length = Snappy.uncompress(block, 12, block.length - 12, data, 0);
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            if (length != data.length || (int) crc.getValue() != getInt(block, 8)) {
+                throw new IOException("Corrupt snappy block");
+            }
+            return data;
+        }
+    };
+
+    private static final int[] GZIP_MAGIC = { 0x1f, 0x8b };
+
+    /**
+     * Writes the start of a compressed stream.
+     */
+    abstract void writeHeader(OutputStream os) throws IOException;
+
+    /**
+     * Compresses a block, returning the bytes written to the compressed stream.
+     */
+    abstract byte[] compressBlock(byte[] data, int length);
+
+    /**
+     * Writes the end of a compressed stream.
+     */
+    abstract void writeTrailer(OutputStream os) throws IOException;
+
+    /**
+     * Creates a stream which decompresses the specified stream.
+     *
+     * @param threads Number of threads used to decompress blocks.
+     * @param timer Histogram where the time taken to decompress each block is recorded (or null).
+     */
+    abstract InputStream createInputStream(InputStream is, int threads, LatencyHistogram timer) throws IOException;
+
+    /**
+     * Reads the next compressed block (as written by {@link #compressBlock(byte[], int)}), or returns null at the end
+     * of the stream.
+     */
+    abstract byte[] readBlock(DataInputStream is) throws IOException;
+
+    /**
+     * Decompresses a block returned by {@link #readBlock(DataInputStream)}.
+     */
+    abstract byte[] decompressBlock(byte[] block) throws IOException;
+
+    private static void writeIntLE(OutputStream os, int value) {
+        try {
+            os.write(value);
+            os.write(value >>> 8);
+            os.write(value >>> 16);
+            os.write(value >>> 24);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void setIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int getIntLE(byte[] bytes, int offset) {
+        return Ints.fromBytes(bytes[offset + 3], bytes[offset + 2], bytes[offset + 1], bytes[offset]);
+    }
+
+    private static void setInt(byte[] bytes, int offset, int value) {
+        System.arraycopy(Ints.toByteArray(value), 0, bytes, offset, 4);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return Ints.fromBytes(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
+    }
+}
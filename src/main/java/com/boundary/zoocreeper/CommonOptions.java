@@ -15,16 +15,26 @@
  */
 package com.boundary.zoocreeper;
 
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Ints;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Localizable;
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
@@ -34,8 +44,9 @@ import java.util.regex.Pattern;
  */
 public class CommonOptions {
 
+    // Required unless a command can run without ZooKeeper (see requireZkConnect)
     @Option(name = "-z", aliases = { "--zk-connect" }, usage = "ZooKeeper connection string (e.g. localhost:2181)",
-            required = true, metaVar = "<zookeeper_connect>")
+            required = false, metaVar = "<zookeeper_connect>")
     String zkConnect;
 
     @Option(name = "--connect-timeout", usage = "ZooKeeper connect timeout (in milliseconds)", required = false,
@@ -46,9 +57,21 @@ public class CommonOptions {
             metaVar = "<timeout_in_ms>")
     long zkSessionTimeoutMs = TimeUnit.SECONDS.toMillis(30);
 
-    @Option(name = "--compress", usage = "Compress output / Decompress input (using zlib)", required = false)
+    @Option(name = "--compress", usage = "Compress output / Decompress input", required = false)
     boolean compress = false;
 
+    @Option(name = "--codec", usage = "Compression codec: GZIP or SNAPPY (default: GZIP)", required = false,
+            metaVar = "<codec>")
+    Codec codec = Codec.GZIP;
+
+    @Option(name = "--compress-threads", usage = "Number of threads used to compress / decompress (default: number of"
+            + " processors)", required = false, metaVar = "<threads>")
+    int compressThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--format", usage = "Format of the backup file: JSON or BINARY (default: JSON)", required = false,
+            metaVar = "<format>")
+    BackupFormat format = BackupFormat.JSON;
+
     @Option(name = "--exclude", usage = "Regular expression of paths to exclude", required = false,
             metaVar = "<exclude_regex>", handler = RegexOptionHandler.class)
     List<Pattern> excludePatterns = new ArrayList<Pattern>();
@@ -64,34 +87,199 @@ public class CommonOptions {
             required = false, metaVar = "<root_path>", handler = ZooKeeperPathOptionHandler.class)
     String rootPath = "/";
 
+    @Option(name = "--async", usage = "Keep many requests in flight using the asynchronous ZooKeeper API",
+            required = false)
+    boolean async = false;
+
+    @Option(name = "--max-in-flight", usage = "Maximum number of znodes read or written concurrently with --async",
+            required = false, metaVar = "<num_znodes>")
+    int maxInFlight = 1000;
+
+    @Option(name = "--max-ops-per-sec", usage = "Maximum number of ZooKeeper requests per second (default: unlimited,"
+            + " or the ceiling of --adaptive-throttle)", required = false, metaVar = "<ops_per_sec>")
+    double maxOpsPerSec = 0;
+
+    @Option(name = "--adaptive-throttle", usage = "Adjust the request rate and --max-in-flight window based on the"
+            + " observed ZooKeeper latency", required = false)
+    boolean adaptiveThrottle = false;
+
+    @Option(name = "--target-latency", usage = "Mean request latency above which --adaptive-throttle backs off (in"
+            + " milliseconds, default: twice the lowest latency observed)", required = false,
+            metaVar = "<latency_in_ms>")
+    long targetLatencyMs = 0;
+
+    @Option(name = "--auto-tune", usage = "Profile the tree first and choose --parallel, --async, --max-in-flight and"
+            + " --batch-size for its shape (unless they're given)", required = false)
+    boolean autoTune = false;
+
+    @Option(name = "--checkpoint-interval", usage = "Seconds between checkpoints of the progress of the run, which can"
+            + " be resumed with --resume (default: 0, no checkpoints)", required = false,
+            metaVar = "<interval_in_secs>")
+    long checkpointIntervalSecs = 0;
+
+    @Option(name = "--checkpoint-file", usage = "Checkpoint file (default: <filename>.checkpoint for a backup,"
+            + " <filename>.restore-checkpoint for a restore)", required = false, metaVar = "<checkpoint_file>")
+    String checkpointFile = null;
+
+    @Option(name = "--resume", usage = "Resume an interrupted run from its checkpoint", required = false)
+    boolean resume = false;
+
+    @Option(name = "--stats-json", usage = "Write a JSON summary of counters, rates and operation latencies to a file"
+            + " at the end of the run", required = false, metaVar = "<stats_file>")
+    String statsJsonFile;
+
     @Option(name = "-h", aliases = { "--help" }, usage = "Show usage information")
     boolean help;
 
+    /**
+     * Metrics of the ZooKeeper clients and compression streams created by these options.
+     */
+    final Metrics metrics = new Metrics();
+
+    /**
+     * ACL lists shared by the znodes read from ZooKeeper.
+     */
+    final AclInterner aclInterner = new AclInterner();
+
+    /**
+     * Last path processed by the run being resumed (or null if not resuming).
+     */
+    String resumeAfter = null;
+
+    private PathFilter pathFilter;
+    private Throttle throttle;
+
     public boolean isPathExcluded(Logger logger, String path) {
-        boolean ignored = false;
-        for (Pattern excludePattern : this.excludePatterns) {
-            if (excludePattern.matcher(path).find()) {
-                logger.info("Excluding path: {} matching pattern: {}", path, excludePattern.pattern());
-                ignored = true;
-                break;
-            }
+        final boolean excluded = getPathFilter().isExcluded(path);
+        if (excluded) {
+            logger.debug("Excluding path: {}", path);
         }
-        return ignored;
+        return excluded;
     }
 
     public boolean isPathIncluded(Logger logger, String path) {
-        if (this.includePatterns.isEmpty()) {
-            return true;
+        final boolean included = getPathFilter().isIncluded(path);
+        if (included && !includePatterns.isEmpty()) {
+            logger.debug("Including path: {}", path);
+        }
+        return included;
+    }
+
+    /**
+     * Returns the --exclude and --include patterns, compiled when first used.
+     */
+    PathFilter getPathFilter() {
+        if (pathFilter == null) {
+            // Fields of the filter are final, so it's safe to share it between threads
+            pathFilter = PathFilter.compile(excludePatterns, includePatterns);
+        }
+        return pathFilter;
+    }
+
+    /**
+     * Checks that -z was given.
+     */
+    void requireZkConnect(CmdLineParser parser) throws CmdLineException {
+        if (zkConnect == null) {
+            throw usageError(parser, "Option \"-z (--zk-connect)\" is required");
+        }
+    }
+
+    /**
+     * Checks that none of the options to tune, checkpoint or report on a run were given to a command which doesn't
+     * use them.
+     */
+    void rejectRunOptions(CmdLineParser parser, String command) throws CmdLineException {
+        if (async || autoTune) {
+            throw usageError(parser, "--async and --auto-tune can't be used with " + command);
+        }
+        if (checkpointIntervalSecs > 0 || resume || checkpointFile != null) {
+            throw usageError(parser, "--checkpoint-interval, --checkpoint-file and --resume can't be used with "
+                    + command);
         }
-        boolean included = false;
-        for (Pattern includePattern : this.includePatterns) {
-            if (includePattern.matcher(path).find()) {
-                logger.info("Including path: {} matching pattern: {}", path, includePattern.pattern());
-                included = true;
-                break;
+        if (statsJsonFile != null) {
+            throw usageError(parser, "--stats-json can't be used with " + command);
+        }
+    }
+
+    /**
+     * Checks that none of the options to connect to ZooKeeper were given to a command which only reads backups.
+     */
+    void rejectZooKeeperOptions(CmdLineParser parser, String command) throws CmdLineException {
+        final CommonOptions defaults = new CommonOptions();
+        if (zkConnect != null || zkConnectTimeoutMs != defaults.zkConnectTimeoutMs
+                || zkSessionTimeoutMs != defaults.zkSessionTimeoutMs || maxInFlight != defaults.maxInFlight
+                || maxOpsPerSec != defaults.maxOpsPerSec || adaptiveThrottle
+                || targetLatencyMs != defaults.targetLatencyMs) {
+            throw usageError(parser, "-z, --connect-timeout, --session-timeout, --max-in-flight, --max-ops-per-sec, "
+                    + "--adaptive-throttle and --target-latency can't be used with " + command
+                    + " (it doesn't connect to ZooKeeper)");
+        }
+    }
+
+    /**
+     * Returns an exception reporting invalid command line options. The message is used as is (it isn't a
+     * {@link java.text.MessageFormat} pattern).
+     */
+    static CmdLineException usageError(CmdLineParser parser, final String message) {
+        return new CmdLineException(parser, new Localizable() {
+            @Override
+            public String formatWithLocale(Locale locale, Object... args) {
+                return message;
             }
+
+            @Override
+            public String format(Object... args) {
+                return message;
+            }
+        });
+    }
+
+    /**
+     * Returns the --checkpoint-file, or the default checkpoint file of a backup file.
+     */
+    File getCheckpointFile(String file, String suffix) {
+        return new File((checkpointFile != null) ? checkpointFile : file + suffix);
+    }
+
+    /**
+     * Returns true if a path comes before the --resume point in sorted depth-first order, or is the resume point
+     * itself (it was processed by the run being resumed).
+     */
+    boolean isResumed(String path) {
+        return resumeAfter != null && ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(path, resumeAfter) <= 0;
+    }
+
+    /**
+     * Copies the connection, path filter and request options to the options of a backup or restore run by another
+     * command.
+     *
+     * @param zkConnect ZooKeeper connection string of the copy.
+     */
+    <T extends CommonOptions> T copyTo(T options, String zkConnect) {
+        options.zkConnect = zkConnect;
+        options.zkConnectTimeoutMs = zkConnectTimeoutMs;
+        options.zkSessionTimeoutMs = zkSessionTimeoutMs;
+        options.excludePatterns = excludePatterns;
+        options.includePatterns = includePatterns;
+        options.verbose = verbose;
+        options.rootPath = rootPath;
+        options.async = async;
+        options.maxInFlight = maxInFlight;
+        options.maxOpsPerSec = maxOpsPerSec;
+        options.adaptiveThrottle = adaptiveThrottle;
+        options.targetLatencyMs = targetLatencyMs;
+        return options;
+    }
+
+    /**
+     * Returns the throttle shared by all the ZooKeeper clients created by these options.
+     */
+    synchronized Throttle getThrottle() {
+        if (throttle == null) {
+            throttle = new Throttle(maxOpsPerSec, adaptiveThrottle, targetLatencyMs, maxInFlight);
         }
-        return included;
+        return throttle;
     }
 
     /**
@@ -102,19 +290,35 @@ public class CommonOptions {
      * @throws InterruptedException If interrupted while waiting for connection to be made.
      */
     public ZooKeeper createZooKeeper(Logger logger) throws IOException, InterruptedException {
+        return createZooKeeper(logger, zkConnect, null);
+    }
+
+    /**
+     * Creates a connection to one of the servers in the connection string (keeping its chroot), whose requests are
+     * also recorded in the metrics of that server.
+     *
+     * @param server Server to connect to (host:port).
+     */
+    ZooKeeper createZooKeeper(Logger logger, String server) throws IOException, InterruptedException {
+        return createZooKeeper(logger, server + EnsembleServers.getChroot(zkConnect), metrics.server(server));
+    }
+
+    private ZooKeeper createZooKeeper(Logger logger, String connect, LatencyHistogram server)
+            throws IOException, InterruptedException {
         final CountDownLatch connected = new CountDownLatch(1);
-        logger.info("Connecting to ZooKeeper: {}", zkConnect);
-        final ZooKeeper zk = new ZooKeeper(zkConnect, Ints.checkedCast(zkSessionTimeoutMs), new Watcher() {
-            @Override
-            public void process(WatchedEvent event) {
-                if (event.getState() == Event.KeeperState.SyncConnected) {
-                    connected.countDown();
-                }
-            }
-        });
+        logger.info("Connecting to ZooKeeper: {}", connect);
+        final ZooKeeper zk = new InstrumentedZooKeeper(connect, Ints.checkedCast(zkSessionTimeoutMs),
+                new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        if (event.getState() == Event.KeeperState.SyncConnected) {
+                            connected.countDown();
+                        }
+                    }
+                }, metrics, getThrottle(), server);
         try {
             if (!connected.await(zkConnectTimeoutMs, TimeUnit.MILLISECONDS)) {
-                throw new IOException("Timeout out connecting to: " + zkConnect);
+                throw new IOException("Timeout out connecting to: " + connect);
             }
             logger.info("Connected");
             return zk;
@@ -128,4 +332,67 @@ public class CommonOptions {
         }
     }
 
+    /**
+     * Opens a backup file (or stdin if "-"), only reading the subtree under the --root-path if the backup is indexed.
+     * The bytes read from the file are added to the metrics when the reader is closed.
+     */
+    BackupReader openBackup(Logger logger, String inputFile) throws IOException {
+        if (format == BackupFormat.BINARY && !compress && !"-".equals(inputFile) && !"/".equals(rootPath)) {
+            final BackupReader reader = IndexedBackupReader.open(inputFile, rootPath);
+            if (reader != null) {
+                return reader;
+            }
+        }
+        final CountingInputStream counter;
+        if ("-".equals(inputFile)) {
+            logger.info("Reading backup from stdin");
+            counter = new CountingInputStream(new BufferedInputStream(System.in));
+        } else {
+            counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+        }
+        InputStream is = counter;
+        final BackupReader reader;
+        try {
+            is = compression().wrap(counter);
+            reader = format.createReader(is, false);
+        } catch (IOException e) {
+            Closeables.close(is, true);
+            throw e;
+        }
+        return new BackupReader() {
+            @Override
+            public BackupZNode next() throws IOException {
+                return reader.next();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    reader.close();
+                } finally {
+                    metrics.add(Metrics.INPUT_BYTES, counter.getCount());
+                }
+            }
+        };
+    }
+
+    Compression compression() {
+        return Compression.of(compress, codec, compressThreads).withMetrics(metrics);
+    }
+
+    /**
+     * Writes the metrics to the --stats-json file (if specified).
+     *
+     * @param restoreStats Counts of what a restore did (or null for a backup).
+     */
+    void writeStats(Logger logger, RestoreStats restoreStats) {
+        metrics.log(logger);
+        if (statsJsonFile != null) {
+            try {
+                metrics.writeJson(statsJsonFile, restoreStats);
+            } catch (IOException e) {
+                logger.warn("Failed to write stats: " + statsJsonFile, e);
+            }
+        }
+    }
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How backup files are compressed: the codec and the number of threads used to compress and decompress blocks.
+ */
+class Compression {
+    static final Compression NONE = new Compression(null, 1);
+
+    private final Codec codec;
+    private final int threads;
+    private final Metrics metrics;
+
+    Compression(Codec codec, int threads) {
+        this(codec, threads, null);
+    }
+
+    /**
+     * @param metrics Metrics where the time taken to compress and decompress each block is recorded (or null).
+     */
+    Compression(Codec codec, int threads, Metrics metrics) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of compression threads: " + threads);
+        }
+        this.codec = codec;
+        this.threads = threads;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the compression selected by the --compress, --codec and --compress-threads options.
+     */
+    static Compression of(boolean compress, Codec codec, int threads) {
+        return compress ? new Compression(codec, threads) : NONE;
+    }
+
+    /**
+     * Returns this compression, recording the time taken by each block in the specified metrics.
+     */
+    Compression withMetrics(Metrics metrics) {
+        return codec == null ? this : new Compression(codec, threads, metrics);
+    }
+
+    boolean isEnabled() {
+        return codec != null;
+    }
+
+    OutputStream wrap(OutputStream os) throws IOException {
+        return wrap(os, false);
+    }
+
+    /**
+     * @param append True to append to a compressed stream which was truncated after a
+     *               {@link BlockCompressingOutputStream#sync()}.
+     */
+    OutputStream wrap(OutputStream os, boolean append) throws IOException {
+        return codec == null ? os : new BlockCompressingOutputStream(os, codec, threads,
+                (metrics != null) ? metrics.operation("compress") : null, append);
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    InputStream wrap(InputStream is) throws IOException {
+        return codec == null ? is : codec.createInputStream(is, threads,
+                (metrics != null) ? metrics.operation("decompress") : null);
+    }
+}
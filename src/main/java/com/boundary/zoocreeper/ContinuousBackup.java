@@ -0,0 +1,265 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.KeeperException.ConnectionLossException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running backup which keeps a snapshot up to date by watching the tree for changes.
+ * <p>
+ * A full snapshot is written first, leaving a data and a child watch on every znode. Each change reported by a
+ * watch is then read and appended to a {@link Journal}, and the journal is periodically merged into a new snapshot
+ * (in the usual backup format). ZooKeeper doesn't trigger watches for ACL changes, so a changed ACL is only picked up
+ * with the next change to the znode's data.
+ * <p>
+ * The daemon exits if its session expires, since changes made while it had no watches would be missed.
+ */
+class ContinuousBackup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContinuousBackup.class);
+    private static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private final BackupOptions options;
+    private final String journalFile;
+    private final BlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<WatchedEvent>();
+    private final Watcher watcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            events.add(event);
+        }
+    };
+    /**
+     * Watched znodes which are part of the backup.
+     */
+    private final Set<String> known = Sets.newHashSet();
+    /**
+     * Watched ephemeral znodes which aren't part of the backup.
+     */
+    private final Set<String> skipped = Sets.newHashSet();
+    private ZooKeeper zk;
+    private Journal journal;
+
+    ContinuousBackup(BackupOptions options) {
+        this.options = options;
+        this.journalFile = (options.journalFile != null) ? options.journalFile : options.outputFile + ".journal";
+    }
+
+    void run() throws IOException, InterruptedException, KeeperException {
+        zk = options.createZooKeeper(LOGGER);
+        try {
+            writeSnapshot();
+            journal = Journal.create(journalFile);
+            final long compactIntervalMs = TimeUnit.SECONDS.toMillis(options.compactIntervalSecs);
+            long nextCompaction = System.currentTimeMillis() + compactIntervalMs;
+            while (true) {
+                final long timeoutMs = Math.max(0, nextCompaction - System.currentTimeMillis());
+                final WatchedEvent event = events.poll(timeoutMs, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    try {
+                        process(event);
+                    } catch (ConnectionLossException e) {
+                        LOGGER.warn("Connection lost handling event, retrying: {}", event);
+                        events.add(event);
+                        Thread.sleep(RETRY_DELAY_MS);
+                    }
+                }
+                if (System.currentTimeMillis() >= nextCompaction) {
+                    compact();
+                    nextCompaction = System.currentTimeMillis() + compactIntervalMs;
+                }
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+            zk.close();
+        }
+    }
+
+    private void writeSnapshot() throws IOException, InterruptedException, KeeperException {
+        LOGGER.info("Writing snapshot: {}", options.outputFile);
+        if (zk.exists(options.rootPath, false) == null) {
+            throw KeeperException.create(Code.NONODE, options.rootPath);
+        }
+        final File tmpFile = new File(options.outputFile + ".tmp");
+        final OutputStream os = createOutputStream(tmpFile);
+        try {
+            final BackupWriter writer = options.format.createWriter(os, options.prettyPrint, options.dedup);
+            visit(options.rootPath, writer);
+            writer.close();
+        } finally {
+            Closeables.close(os, true);
+        }
+        rename(tmpFile, new File(options.outputFile));
+        LOGGER.info("Watching {} znodes", known.size());
+    }
+
+    /**
+     * Merges the journal into a new snapshot, and starts a new journal.
+     */
+    private void compact() throws IOException {
+        if (journal.getEntries() == 0) {
+            return;
+        }
+        journal.close();
+        journal = null;
+        final SortedMap<String, BackupZNode> changes = Journal.read(journalFile);
+        LOGGER.info("Compacting {} changed znodes into snapshot: {}", changes.size(), options.outputFile);
+        final File tmpFile = new File(options.outputFile + ".tmp");
+        final BackupReader reader = new BackupMerger(options.format.open(options.outputFile, options.compression(),
+                false), Journal.reader(changes));
+        try {
+            final OutputStream os = createOutputStream(tmpFile);
+            try {
+                final BackupWriter writer = options.format.createWriter(os, options.prettyPrint, options.dedup);
+                for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+                    writer.write(zNode);
+                }
+                writer.close();
+            } finally {
+                Closeables.close(os, true);
+            }
+        } finally {
+            reader.close();
+        }
+        rename(tmpFile, new File(options.outputFile));
+        // Replaying the old journal on top of the new snapshot would be harmless, so a crash here is safe
+        journal = Journal.create(journalFile);
+    }
+
+    private void process(WatchedEvent event) throws IOException, InterruptedException, KeeperException {
+        LOGGER.debug("Processing event: {}", event);
+        final String path = event.getPath();
+        if (event.getType() == EventType.None) {
+            if (event.getState() == KeeperState.Expired) {
+                throw KeeperException.create(Code.SESSIONEXPIRED);
+            }
+            return;
+        }
+        if (event.getType() == EventType.NodeDeleted) {
+            deleted(path);
+        } else if (event.getType() == EventType.NodeDataChanged && known.contains(path)) {
+            final BackupZNode zNode;
+            try {
+                zNode = Backup.readZNode(zk, path, options, watcher);
+            } catch (NoNodeException e) {
+                deleted(path);
+                return;
+            }
+            if (zNode == null) {
+                // Can't happen (a znode can't become ephemeral), but don't leave it in the backup
+                deleted(path);
+                return;
+            }
+            journal.append(zNode);
+        } else if (event.getType() == EventType.NodeChildrenChanged && known.contains(path)) {
+            final Stat stat = new Stat();
+            final List<String> children;
+            try {
+                children = zk.getChildren(path, watcher, stat);
+            } catch (NoNodeException e) {
+                deleted(path);
+                return;
+            }
+            journal.append(new BackupZNode(path, stat, null, null));
+            visitChildren(path, children, null);
+        }
+    }
+
+    private void deleted(String path) throws IOException {
+        skipped.remove(path);
+        if (known.remove(path)) {
+            LOGGER.debug("Node deleted: {}", path);
+            journal.append(new BackupZNode(path, null, null, null));
+        }
+    }
+
+    /**
+     * Reads a znode and its descendants which aren't being watched yet, setting watches on them.
+     *
+     * @param snapshot Writer for the snapshot, or null to append the znodes to the journal.
+     */
+    private void visit(String path, BackupWriter snapshot) throws IOException, InterruptedException, KeeperException {
+        final BackupZNode zNode;
+        final List<String> children;
+        try {
+            zNode = Backup.readZNode(zk, path, options, watcher);
+            if (zNode == null) {
+                skipped.add(path);
+                if (zk.exists(path, watcher) == null) {
+                    skipped.remove(path);
+                }
+                return;
+            }
+            children = zk.getChildren(path, watcher);
+        } catch (NoNodeException e) {
+            // Picked up by the parent's child watch
+            LOGGER.debug("Node disappeared: {}", path);
+            return;
+        }
+        known.add(path);
+        if (snapshot != null) {
+            snapshot.write(zNode);
+        } else {
+            journal.append(zNode);
+        }
+        visitChildren(path, children, snapshot);
+    }
+
+    private void visitChildren(String path, List<String> children, BackupWriter snapshot)
+            throws IOException, InterruptedException, KeeperException {
+        for (String childPath : Backup.getChildPaths(options, path, children)) {
+            if (!known.contains(childPath) && !skipped.contains(childPath)) {
+                visit(childPath, snapshot);
+            }
+        }
+    }
+
+    private OutputStream createOutputStream(File file) throws IOException {
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        return options.compression().wrap(os);
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Unable to rename " + from + " to " + to);
+        }
+    }
+}
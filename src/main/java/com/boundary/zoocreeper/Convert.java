@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Command-line utility used to convert a backup between the JSON and binary formats.
+ */
+public class Convert {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Convert.class);
+
+    private final ConvertOptions options;
+
+    public Convert(ConvertOptions options) {
+        this.options = Preconditions.checkNotNull(options);
+    }
+
+    public void convert(OutputStream os) throws IOException {
+        final BackupReader reader = options.inputFormat.open(options.inputFile, options.compression(),
+                options.incremental);
+        try {
+            final BackupWriter writer = options.outputFormat.createWriter(os, options.prettyPrint, options.dedup);
+            long count = 0;
+            for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+                writer.write(zNode);
+                count++;
+            }
+            writer.close();
+            LOGGER.info("Converted {} znodes from {} to {}", new Object[] { count, options.inputFormat,
+                    options.outputFormat });
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(Convert.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException {
+        ConvertOptions options = new ConvertOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(Convert.class.getPackage().getName());
+        }
+        Convert convert = new Convert(options);
+        OutputStream os;
+        if ("-".equals(options.outputFile)) {
+            os = System.out;
+        } else {
+            os = new BufferedOutputStream(new FileOutputStream(options.outputFile));
+        }
+        try {
+            os = options.compression().wrap(os);
+            convert.convert(os);
+        } finally {
+            os.flush();
+            Closeables.close(os, true);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Options to the {@link Convert} command.
+ */
+class ConvertOptions {
+
+    @Option(name = "-f", aliases = { "--file" }, usage = "Output file for the converted backup (default: stdout)",
+            required = false, metaVar = "<filename>")
+    String outputFile = "-";
+
+    @Option(name = "--from", usage = "Format of the input backup: JSON or BINARY (default: JSON)", required = false,
+            metaVar = "<format>")
+    BackupFormat inputFormat = BackupFormat.JSON;
+
+    @Option(name = "--to", usage = "Format of the output backup: JSON or BINARY (default: BINARY)", required = false,
+            metaVar = "<format>")
+    BackupFormat outputFormat = BackupFormat.BINARY;
+
+    @Option(name = "--incremental", usage = "Input is an incremental backup", required = false)
+    boolean incremental = false;
+
+    @Option(name = "--compress", usage = "Compress output / Decompress input", required = false)
+    boolean compress = false;
+
+    @Option(name = "--codec", usage = "Compression codec: GZIP or SNAPPY (default: GZIP)", required = false,
+            metaVar = "<codec>")
+    Codec codec = Codec.GZIP;
+
+    @Option(name = "--compress-threads", usage = "Number of threads used to compress / decompress (default: number of"
+            + " processors)", required = false, metaVar = "<threads>")
+    int compressThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--dedup", usage = "Write repeated znode data and ACL lists once and refer to them by id",
+            required = false)
+    boolean dedup = false;
+
+    @Option(name = "--pretty-print", usage = "Pretty printing of JSON output", required = false)
+    boolean prettyPrint = false;
+
+    @Option(name = "-v", aliases = { "--verbose" }, usage = "Verbose logging output", required = false)
+    boolean verbose;
+
+    @Option(name = "-h", aliases = { "--help" }, usage = "Show usage information")
+    boolean help;
+
+    @Argument(usage = "Backup file to convert (default: stdin)", required = false, metaVar = "<input_file>")
+    String inputFile = "-";
+
+    Compression compression() {
+        return Compression.of(compress, codec, compressThreads);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.KeeperException;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Command-line utility used to copy the znodes of one ZooKeeper ensemble to another without an intermediate backup
+ * file.
+ * <p>
+ * A {@link BackgroundBackup} of the source runs in its own thread while a {@link Restore} to the target reads the
+ * znodes from it, so the source is only read as fast as the target can be written.
+ */
+public class Copy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Copy.class);
+
+    private final BackupOptions sourceOptions;
+    private final RestoreOptions targetOptions;
+    private final Restore restore;
+    private final int queueSize;
+
+    public Copy(CopyOptions options) {
+        Preconditions.checkNotNull(options);
+        Preconditions.checkArgument(options.queueSize > 0, "queue size must be positive");
+        this.sourceOptions = options.sourceOptions();
+        this.targetOptions = options.targetOptions();
+        this.restore = new Restore(targetOptions);
+        this.queueSize = options.queueSize;
+    }
+
+    /**
+     * Copies the znodes of the source ensemble to the target ensemble.
+     */
+    public void copy() throws InterruptedException, IOException, KeeperException {
+        final BackgroundBackup source = new BackgroundBackup(new Backup(sourceOptions), queueSize).start();
+        try {
+            // Closes the source, which stops at its next write if the restore failed
+            restore.restore(source);
+        } catch (IOException e) {
+            // Reading the source fails if the backup failed, in which case its cause is thrown below
+            if (!source.isFailed()) {
+                throw e;
+            }
+        }
+        source.checkFailure();
+    }
+
+    /**
+     * Profiles the source and chooses the options of both sides which weren't given.
+     */
+    void autoTune() throws InterruptedException, IOException, KeeperException {
+        final TreeProfile profile = TreeProfile.read(sourceOptions, 1);
+        profile.tune(sourceOptions);
+        profile.tune(targetOptions);
+    }
+
+    Metrics getSourceMetrics() {
+        return sourceOptions.metrics;
+    }
+
+    Metrics getTargetMetrics() {
+        return targetOptions.metrics;
+    }
+
+    RestoreStats getStats() {
+        return restore.getStats();
+    }
+
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(Copy.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        CopyOptions options = new CopyOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+            options.requireZkConnect(parser);
+            if (options.async && options.batchSize > 1) {
+                throw CommonOptions.usageError(parser, "--async can't be combined with --batch-size");
+            }
+            if (options.checkpointIntervalSecs > 0 || options.resume) {
+                throw CommonOptions.usageError(parser, "--checkpoint-interval and --resume can't be used with copy");
+            }
+            final CommonOptions defaults = new CommonOptions();
+            if (options.compress || options.codec != defaults.codec
+                    || options.compressThreads != defaults.compressThreads || options.format != defaults.format) {
+                throw CommonOptions.usageError(parser, "--compress, --codec, --compress-threads and --format can't be "
+                        + "used with copy (it doesn't read or write a backup file)");
+            }
+            if (options.queueSize < 1) {
+                throw CommonOptions.usageError(parser, "--queue-size must be positive");
+            }
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(Copy.class.getPackage().getName());
+        }
+        Copy copy = new Copy(options);
+        if (options.autoTune) {
+            copy.autoTune();
+        }
+        copy.getSourceMetrics().registerMBeans("CopySource");
+        copy.getTargetMetrics().registerMBeans("CopyTarget");
+        try {
+            copy.copy();
+        } finally {
+            LOGGER.info("Source metrics:");
+            copy.getSourceMetrics().log(LOGGER);
+            LOGGER.info("Target metrics:");
+            copy.getTargetMetrics().log(LOGGER);
+            if (options.statsJsonFile != null) {
+                try {
+                    Metrics.writeJson(options.statsJsonFile, copy.getSourceMetrics(), copy.getTargetMetrics(),
+                            copy.getStats());
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to write stats: " + options.statsJsonFile, e);
+                }
+            }
+            copy.getSourceMetrics().unregisterMBeans();
+            copy.getTargetMetrics().unregisterMBeans();
+        }
+    }
+}
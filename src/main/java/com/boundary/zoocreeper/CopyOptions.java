@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.kohsuke.args4j.Option;
+
+/**
+ * Options to the copy command. The common options apply to both the source (-z) and the target ensemble, except for
+ * the backup file options, which are rejected.
+ */
+class CopyOptions extends CommonOptions {
+
+    @Option(name = "-t", aliases = { "--target-zk-connect" }, usage = "ZooKeeper connection string of the ensemble "
+            + "to copy to (e.g. localhost:2182)", required = true, metaVar = "<zookeeper_connect>")
+    String targetZkConnect;
+
+    @Option(name = "--retries", usage = "Number of retries to read consistent data", required = false,
+            metaVar = "<num_retries>")
+    int numRetries = 5;
+
+    @Option(name = "--parallel", usage = "Number of ZooKeeper sessions used to read subtrees in parallel",
+            required = false, metaVar = "<num_sessions>")
+    int parallelism = 1;
+
+    @Option(name = "--overwrite-existing", usage = "Overwrite existing znodes", required = false)
+    boolean overwriteExisting = false;
+
+    @Option(name = "--batch-size", usage = "Maximum number of znodes restored in a single multi() transaction",
+            required = false, metaVar = "<num_znodes>")
+    int batchSize = 1;
+
+    @Option(name = "--max-batch-bytes", usage = "Maximum estimated size of a multi() transaction (must be less than "
+            + "the server's jute.maxbuffer)", required = false, metaVar = "<num_bytes>")
+    int maxBatchBytes = 512 * 1024;
+
+    @Option(name = "--queue-size", usage = "Maximum number of znodes read but not yet written (default: 10000)",
+            required = false, metaVar = "<num_znodes>")
+    int queueSize = 10000;
+
+    /**
+     * Returns the options used to back up the source ensemble.
+     */
+    BackupOptions sourceOptions() {
+        final BackupOptions source = copyTo(new BackupOptions(), zkConnect);
+        source.numRetries = numRetries;
+        source.parallelism = parallelism;
+        return source;
+    }
+
+    /**
+     * Returns the options used to restore to the target ensemble.
+     */
+    RestoreOptions targetOptions() {
+        final RestoreOptions target = copyTo(new RestoreOptions(), targetZkConnect);
+        target.overwriteExisting = overwriteExisting;
+        target.batchSize = batchSize;
+        target.maxBatchBytes = maxBatchBytes;
+        return target;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.zookeeper.KeeperException;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Command-line utility used to compare a backup with the current state of ZooKeeper, e.g. to see what a restore
+ * would change before running it (see {@link BackupDiff}).
+ */
+public class Diff {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Diff.class);
+    // Znodes read from ZooKeeper ahead of the comparison
+    private static final int QUEUE_SIZE = 1000;
+
+    private final DiffOptions options;
+    private final BackupOptions liveOptions;
+    private final BackupDiff diff;
+
+    public Diff(DiffOptions options, Writer out) {
+        this.options = Preconditions.checkNotNull(options);
+        this.liveOptions = options.liveOptions();
+        this.diff = new BackupDiff(options, out);
+    }
+
+    /**
+     * Compares the backup with ZooKeeper, closing the reader.
+     */
+    void diff(BackupReader backup) throws InterruptedException, IOException, KeeperException {
+        final BackgroundBackup live = new BackgroundBackup(new Backup(liveOptions), QUEUE_SIZE).start();
+        try {
+            diff.diff(backup, live);
+        } catch (IOException e) {
+            // Reading ZooKeeper fails if the backup failed, in which case its cause is thrown below
+            if (!live.isFailed()) {
+                throw e;
+            }
+        } finally {
+            Closeables.close(live, true);
+            backup.close();
+        }
+        live.checkFailure();
+    }
+
+    /**
+     * Profiles ZooKeeper and chooses the options used to read it which weren't given.
+     */
+    void autoTune() throws InterruptedException, IOException, KeeperException {
+        TreeProfile.read(liveOptions, 1).tune(liveOptions);
+    }
+
+    Metrics getMetrics() {
+        return liveOptions.metrics;
+    }
+
+    DiffStats getStats() {
+        return diff.getStats();
+    }
+
+    /**
+     * Opens the backup file, only reading the subtree being compared if it's an indexed binary backup.
+     */
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(Diff.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        DiffOptions options = new DiffOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+            options.requireZkConnect(parser);
+            if (options.checkpointIntervalSecs > 0 || options.resume) {
+                throw CommonOptions.usageError(parser, "--checkpoint-interval and --resume can't be used with diff");
+            }
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(Diff.class.getPackage().getName());
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Charsets.UTF_8));
+        Diff diff = new Diff(options, out);
+        if (options.autoTune) {
+            diff.autoTune();
+        }
+        diff.getMetrics().registerMBeans("Diff");
+        try {
+            diff.diff(options.openBackup(LOGGER, options.inputFile));
+        } finally {
+            out.flush();
+            diff.getMetrics().log(LOGGER);
+            if (options.statsJsonFile != null) {
+                try {
+                    diff.getMetrics().writeJson(options.statsJsonFile, null);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to write stats: " + options.statsJsonFile, e);
+                }
+            }
+            diff.getMetrics().unregisterMBeans();
+        }
+        diff.getStats().log(LOGGER);
+        if (options.exitCode && diff.getStats().hasDifferences()) {
+            System.exit(1);
+        }
+    }
+}
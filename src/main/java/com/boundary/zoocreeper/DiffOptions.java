@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.kohsuke.args4j.Option;
+
+/**
+ * Options to the diff command. The backup file is read with the --format and --compress options, and ZooKeeper is
+ * read with the same options as a backup.
+ */
+class DiffOptions extends CommonOptions {
+
+    @Option(name = "-f", aliases = { "--file" }, usage = "Backup file to compare with ZooKeeper (default: stdin)",
+            required = false, metaVar = "<filename>")
+    String inputFile = "-";
+
+    @Option(name = "--retries", usage = "Number of retries to read consistent data", required = false,
+            metaVar = "<num_retries>")
+    int numRetries = 5;
+
+    @Option(name = "--parallel", usage = "Number of ZooKeeper sessions used to read subtrees in parallel",
+            required = false, metaVar = "<num_sessions>")
+    int parallelism = 1;
+
+    @Option(name = "--exit-code", usage = "Exit with status 1 if there are differences", required = false)
+    boolean exitCode = false;
+
+    /**
+     * Returns the options used to read ZooKeeper.
+     */
+    BackupOptions liveOptions() {
+        final BackupOptions live = copyTo(new BackupOptions(), zkConnect);
+        live.numRetries = numRetries;
+        live.parallelism = parallelism;
+        return live;
+    }
+}
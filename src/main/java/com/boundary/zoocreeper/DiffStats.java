@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.slf4j.Logger;
+
+/**
+ * Counts of the differences found by a {@link BackupDiff}.
+ */
+class DiffStats {
+    long added = 0;
+    long removed = 0;
+    long dataChanged = 0;
+    long aclsChanged = 0;
+    long unchanged = 0;
+
+    boolean hasDifferences() {
+        return added > 0 || removed > 0 || dataChanged > 0 || aclsChanged > 0;
+    }
+
+    void log(Logger logger) {
+        logger.info("Compared znodes: {} added, {} removed, {} with changed data, {} with changed ACLs, {} unchanged",
+                new Object[] { added, removed, dataChanged, aclsChanged, unchanged });
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Servers of a ZooKeeper ensemble, along with the role each one is serving in, found by sending the 'srvr' four
+ * letter word to every server in a connection string.
+ */
+class EnsembleServers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnsembleServers.class);
+
+    private static final int DEFAULT_PORT = 2181;
+    private static final String MODE_PREFIX = "Mode: ";
+
+    /**
+     * Role of a server, in order of preference for reads: observers don't vote on writes, and the leader carries the
+     * write load of the ensemble.
+     */
+    enum Role {
+        OBSERVER, FOLLOWER, STANDALONE, LEADER
+    }
+
+    private EnsembleServers() {
+    }
+
+    /**
+     * Returns the servers (host:port) in a connection string.
+     */
+    static List<String> getServers(String zkConnect) {
+        final int chrootIndex = zkConnect.indexOf('/');
+        final String hosts = (chrootIndex >= 0) ? zkConnect.substring(0, chrootIndex) : zkConnect;
+        final List<String> servers = Lists.newArrayList();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            // IPv6 addresses are written in brackets, so the port always follows the last colon after them
+            servers.add((host.lastIndexOf(':') > host.lastIndexOf(']')) ? host : host + ":" + DEFAULT_PORT);
+        }
+        return servers;
+    }
+
+    /**
+     * Returns the chroot suffix of a connection string (or an empty string if there isn't one).
+     */
+    static String getChroot(String zkConnect) {
+        final int chrootIndex = zkConnect.indexOf('/');
+        return (chrootIndex >= 0) ? zkConnect.substring(chrootIndex) : "";
+    }
+
+    /**
+     * Asks a server which role it is serving in.
+     *
+     * @return The role, or null if the server couldn't be reached or isn't serving requests.
+     */
+    static Role getRole(String server, int timeoutMs) {
+        final int portIndex = server.lastIndexOf(':');
+        final String host = server.substring(0, portIndex).replace("[", "").replace("]", "");
+        final int port = Integer.parseInt(server.substring(portIndex + 1));
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            final OutputStream os = socket.getOutputStream();
+            os.write("srvr".getBytes(Charsets.US_ASCII));
+            os.flush();
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(MODE_PREFIX)) {
+                    return Role.valueOf(line.substring(MODE_PREFIX.length()).trim().toUpperCase(Locale.ENGLISH));
+                }
+            }
+            LOGGER.warn("Server isn't serving requests: {}", server);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to get the role of server: " + server, e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown role of server: " + server, e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing was written which could be lost
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the servers in a connection string which backups should read from, in order of preference (see
+     * {@link Role}).
+     *
+     * @param skipLeader True if the leader shouldn't be read from.
+     * @throws IOException If no server can be read from.
+     */
+    static List<String> getReadServers(String zkConnect, int timeoutMs, boolean skipLeader) throws IOException {
+        final Map<String, Role> roles = Maps.newHashMap();
+        final List<String> servers = Lists.newArrayList();
+        for (String server : getServers(zkConnect)) {
+            final Role role = getRole(server, timeoutMs);
+            if (role == null) {
+                continue;
+            }
+            if (role == Role.LEADER && skipLeader) {
+                LOGGER.info("Skipping leader: {}", server);
+                continue;
+            }
+            roles.put(server, role);
+            servers.add(server);
+        }
+        if (servers.isEmpty()) {
+            throw new IOException("No server to read from in: " + zkConnect);
+        }
+        // Stable, so servers with the same role stay in the order of the connection string
+        Collections.sort(servers, new Comparator<String>() {
+            @Override
+            public int compare(String server1, String server2) {
+                return roles.get(server1).compareTo(roles.get(server2));
+            }
+        });
+        for (String server : servers) {
+            LOGGER.info("Reading from {} ({})", server, roles.get(server).name().toLowerCase(Locale.ENGLISH));
+        }
+        return servers;
+    }
+}
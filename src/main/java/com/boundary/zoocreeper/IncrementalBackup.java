@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backs up the znodes which changed since a previous (full) backup.
+ * <p>
+ * The stat of each znode is read with {@link ZooKeeper#exists(String, boolean)} and compared against the baseline:
+ * the ACLs and data are only read if the czxid, mzxid or aversion changed, and the children are only listed if the
+ * pzxid changed. The delta contains full entries for new and modified znodes, stat-only entries for znodes where only
+ * the children changed, and null entries for deleted znodes. {@link Merge} applies it to the baseline.
+ */
+class IncrementalBackup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalBackup.class);
+
+    private final BackupOptions options;
+    private final ZooKeeper zk;
+    private final BackupWriter writer;
+    private Map<String, BaselineZNode> baseline;
+    private long changed = 0;
+    private long statOnly = 0;
+    private long deleted = 0;
+    private long unchanged = 0;
+
+    IncrementalBackup(BackupOptions options, ZooKeeper zk, BackupWriter writer) {
+        this.options = options;
+        this.zk = zk;
+        this.writer = writer;
+    }
+
+    void backup(String rootPath) throws KeeperException, InterruptedException, IOException {
+        LOGGER.info("Reading baseline: {}", options.baselineFile);
+        final BackupReader reader = options.format.open(options.baselineFile, options.compression(), false);
+        try {
+            baseline = readBaseline(reader);
+        } finally {
+            reader.close();
+        }
+        doBackup(rootPath);
+        LOGGER.info("Incremental backup: {} changed, {} stat changed, {} deleted, {} unchanged",
+                new Object[] { changed, statOnly, deleted, unchanged });
+    }
+
+    /**
+     * Reads the stat and child names of the znodes in a backup (without keeping their data).
+     */
+    private static Map<String, BaselineZNode> readBaseline(BackupReader reader) throws IOException {
+        final Map<String, BaselineZNode> baseline = Maps.newHashMap();
+        for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+            baseline.put(zNode.path, new BaselineZNode(zNode.stat));
+            if (!"/".equals(zNode.path)) {
+                final BaselineZNode parent = baseline.get(ZooKeeperPaths.getParentPath(zNode.path));
+                if (parent != null) {
+                    parent.children.add(zNode.path.substring(zNode.path.lastIndexOf('/') + 1));
+                }
+            }
+        }
+        return baseline;
+    }
+
+    private void doBackup(String path) throws KeeperException, InterruptedException, IOException {
+        final BaselineZNode base = baseline.get(path);
+        Stat stat = zk.exists(path, false);
+        if (stat == null || (stat.getEphemeralOwner() != 0 && !options.backupEphemeral)) {
+            deleted(path, base);
+            return;
+        }
+        final boolean sameZNode = base != null && base.stat.getCzxid() == stat.getCzxid();
+        if (sameZNode && base.stat.getMzxid() == stat.getMzxid() && base.stat.getAversion() == stat.getAversion()) {
+            if (base.stat.getPzxid() != stat.getPzxid()) {
+                LOGGER.debug("Children changed: {}", path);
+                writer.write(new BackupZNode(path, stat, null, null));
+                statOnly++;
+            } else {
+                unchanged++;
+            }
+        } else {
+            final BackupZNode zNode;
+            try {
+                zNode = Backup.readZNode(zk, path, options);
+            } catch (NoNodeException e) {
+                deleted(path, base);
+                return;
+            }
+            if (zNode == null) {
+                deleted(path, base);
+                return;
+            }
+            LOGGER.debug("Backing up changed node: {}", path);
+            writer.write(zNode);
+            changed++;
+            stat = zNode.stat;
+        }
+
+        final List<String> children;
+        if (sameZNode && base.stat.getPzxid() == stat.getPzxid()) {
+            children = base.children;
+        } else {
+            // Children missing from the current list are checked (and recorded as deleted) when they are visited
+            final Set<String> allChildren = Sets.newHashSet();
+            if (base != null) {
+                allChildren.addAll(base.children);
+            }
+            try {
+                allChildren.addAll(zk.getChildren(path, false));
+            } catch (NoNodeException e) {
+                LOGGER.warn("Node disappeared during backup: {}", path);
+            }
+            children = Lists.newArrayList(allChildren);
+        }
+        for (String childPath : Backup.getChildPaths(options, path, children)) {
+            doBackup(childPath);
+        }
+    }
+
+    private void deleted(String path, BaselineZNode base) throws IOException {
+        if (base != null) {
+            LOGGER.debug("Node deleted: {}", path);
+            writer.write(new BackupZNode(path, null, null, null));
+            deleted++;
+        }
+    }
+
+    private static class BaselineZNode {
+        private final Stat stat;
+        private final List<String> children = Lists.newArrayListWithCapacity(0);
+
+        private BaselineZNode(Stat stat) {
+            this.stat = stat;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads a single subtree from a binary backup using the index written by {@link BinaryBackupWriter}.
+ * <p>
+ * The subtree (and every record before it) sorts after the last index entry whose path isn't greater than the root of
+ * the subtree, and every ancestor of the subtree which comes before that entry is one of the entry's ancestors. The
+ * reader returns the records of those ancestors, then reads from the entry up to the end of the subtree, so the
+ * restore sees the same sequence of ancestors and znodes as when reading the whole backup.
+ */
+class IndexedBackupReader implements BackupReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexedBackupReader.class);
+
+    private final RandomAccessFile file;
+    private final String rootPath;
+    private final Iterator<Long> ancestorOffsets;
+    private final long startOffset;
+    private BinaryBackupReader reader;
+    private boolean finished = false;
+
+    private IndexedBackupReader(RandomAccessFile file, String rootPath, List<Long> ancestorOffsets, long startOffset) {
+        this.file = file;
+        this.rootPath = rootPath;
+        this.ancestorOffsets = ancestorOffsets.iterator();
+        this.startOffset = startOffset;
+    }
+
+    /**
+     * Opens the subtree of a binary backup file rooted at the specified path.
+     *
+     * @return A reader for the subtree (and its ancestors), or null if the backup doesn't have an index or is
+     *         deduplicated (data may refer to records outside the subtree).
+     */
+    static IndexedBackupReader open(String fileName, String rootPath) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            final long length = file.length();
+            if (length < BinaryFormat.MAGIC.length + BinaryFormat.INDEX_TRAILER_LENGTH) {
+                file.close();
+                return null;
+            }
+            final byte[] magic = new byte[BinaryFormat.INDEX_MAGIC.length];
+            file.seek(length - BinaryFormat.INDEX_TRAILER_LENGTH);
+            final long indexOffset = file.readLong();
+            file.readFully(magic);
+            if (!Arrays.equals(magic, BinaryFormat.INDEX_MAGIC)) {
+                file.close();
+                return null;
+            }
+            file.seek(BinaryFormat.MAGIC.length);
+            if (BinaryFormat.readVarLong(file) >= BinaryFormat.VERSION_DEDUP) {
+                LOGGER.info("Deduplicated backup, reading the whole backup");
+                file.close();
+                return null;
+            }
+            final DataInputStream index = new DataInputStream(open(file, indexOffset));
+            final long numEntries = BinaryFormat.readVarLong(index);
+            List<Long> ancestorOffsets = Collections.emptyList();
+            long startOffset = -1;
+            for (long i = 0; i < numEntries; i++) {
+                final String path = BinaryFormat.readString(index);
+                final long offset = BinaryFormat.readVarLong(index);
+                final int numAncestors = (int) BinaryFormat.readVarLong(index);
+                final List<Long> offsets = Lists.newArrayListWithCapacity(numAncestors);
+                for (int j = 0; j < numAncestors; j++) {
+                    offsets.add(BinaryFormat.readVarLong(index));
+                }
+                if (startOffset >= 0 && ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(path, rootPath) > 0) {
+                    break;
+                }
+                ancestorOffsets = offsets;
+                startOffset = offset;
+            }
+            if (startOffset < 0) {
+                file.close();
+                return null;
+            }
+            LOGGER.info("Reading backup from offset {} of {}", startOffset, length);
+            return new IndexedBackupReader(file, rootPath, ancestorOffsets, startOffset);
+        } catch (IOException e) {
+            Closeables.close(file, true);
+            throw e;
+        }
+    }
+
+    private static InputStream open(RandomAccessFile file, long offset) throws IOException {
+        final FileChannel channel = file.getChannel();
+        channel.position(offset);
+        return new BufferedInputStream(Channels.newInputStream(channel));
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (ancestorOffsets.hasNext()) {
+            return new BinaryBackupReader(open(file, ancestorOffsets.next()), false, false).next();
+        }
+        if (reader == null) {
+            reader = new BinaryBackupReader(open(file, startOffset), false, false);
+        }
+        final BackupZNode zNode = reader.next();
+        if (zNode == null || (ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(zNode.path, rootPath) > 0
+                && !ZooKeeperPaths.isDescendant(zNode.path, rootPath))) {
+            // Past the end of the subtree
+            finished = true;
+            return null;
+        }
+        return zNode;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
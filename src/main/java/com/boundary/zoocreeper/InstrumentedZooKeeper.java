@@ -0,0 +1,365 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Iterables;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ZooKeeper client which records the latency of each request in {@link Metrics}, along with the number of requests
+ * which failed because the znode didn't exist, and paces requests with a {@link Throttle}. A client connected to a
+ * single server also records its requests in the histogram of that server.
+ * <p>
+ * The convenience overloads (e.g. {@code getData(String, boolean, Stat)}) call the ones overridden here, so each
+ * request is only recorded once. The latency of an asynchronous request is the time until its callback is called.
+ */
+class InstrumentedZooKeeper extends ZooKeeper {
+    private final Metrics metrics;
+    private final Throttle throttle;
+    private final LatencyHistogram server;
+    private final LatencyHistogram exists;
+    private final LatencyHistogram getData;
+    private final LatencyHistogram getChildren;
+    private final LatencyHistogram getACL;
+    private final LatencyHistogram create;
+    private final LatencyHistogram delete;
+    private final LatencyHistogram setData;
+    private final LatencyHistogram setACL;
+    private final LatencyHistogram multi;
+    private final LatencyHistogram sync;
+
+    /**
+     * @param server Histogram of the server the client is connected to (or null if it may connect to any server in
+     *               the connection string).
+     */
+    InstrumentedZooKeeper(String connectString, int sessionTimeout, Watcher watcher, Metrics metrics,
+                          Throttle throttle, LatencyHistogram server) throws IOException {
+        super(connectString, sessionTimeout, watcher);
+        this.metrics = metrics;
+        this.throttle = throttle;
+        this.server = server;
+        this.exists = metrics.operation("exists");
+        this.getData = metrics.operation("getData");
+        this.getChildren = metrics.operation("getChildren");
+        this.getACL = metrics.operation("getACL");
+        this.create = metrics.operation("create");
+        this.delete = metrics.operation("delete");
+        this.setData = metrics.operation("setData");
+        this.setACL = metrics.operation("setACL");
+        this.multi = metrics.operation("multi");
+        this.sync = metrics.operation("sync");
+    }
+
+    private KeeperException failed(LatencyHistogram histogram, long start, KeeperException e) {
+        completed(histogram, start, 0, e.code().intValue());
+        return e;
+    }
+
+    private void completed(LatencyHistogram histogram, long start, long bytes, int rc) {
+        throttle.completed(histogram.record(start, bytes, rc != Code.OK.intValue()));
+        if (server != null) {
+            server.record(start, bytes, rc != Code.OK.intValue());
+        }
+        if (rc == Code.NONODE.intValue()) {
+            metrics.increment(Metrics.NO_NODE);
+        }
+    }
+
+    private static int length(byte[] data) {
+        return data == null ? 0 : data.length;
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final Stat stat = super.exists(path, watcher);
+            completed(exists, start, 0, Code.OK.intValue());
+            return stat;
+        } catch (KeeperException e) {
+            throw failed(exists, start, e);
+        }
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, final StatCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.exists(path, watcher, new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                // A missing znode isn't an error for exists()
+                completed(exists, start, 0, rc == Code.NONODE.intValue() ? Code.OK.intValue() : rc);
+                cb.processResult(rc, path, ctx, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final byte[] data = super.getData(path, watcher, stat);
+            completed(getData, start, length(data), Code.OK.intValue());
+            return data;
+        } catch (KeeperException e) {
+            throw failed(getData, start, e);
+        }
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, final DataCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.getData(path, watcher, new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                completed(getData, start, length(data), rc);
+                cb.processResult(rc, path, ctx, data, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final List<String> children = super.getChildren(path, watcher);
+            completed(getChildren, start, 0, Code.OK.intValue());
+            return children;
+        } catch (KeeperException e) {
+            throw failed(getChildren, start, e);
+        }
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat)
+            throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final List<String> children = super.getChildren(path, watcher, stat);
+            completed(getChildren, start, 0, Code.OK.intValue());
+            return children;
+        } catch (KeeperException e) {
+            throw failed(getChildren, start, e);
+        }
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, final ChildrenCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.getChildren(path, watcher, new ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                completed(getChildren, start, 0, rc);
+                cb.processResult(rc, path, ctx, children);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, final Children2Callback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.getChildren(path, watcher, new Children2Callback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+                completed(getChildren, start, 0, rc);
+                cb.processResult(rc, path, ctx, children, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public List<ACL> getACL(String path, Stat stat) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final List<ACL> acls = super.getACL(path, stat);
+            completed(getACL, start, 0, Code.OK.intValue());
+            return acls;
+        } catch (KeeperException e) {
+            throw failed(getACL, start, e);
+        }
+    }
+
+    @Override
+    public void getACL(String path, Stat stat, final ACLCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.getACL(path, stat, new ACLCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+                completed(getACL, start, 0, rc);
+                cb.processResult(rc, path, ctx, acl, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+            throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final String createdPath = super.create(path, data, acl, createMode);
+            completed(create, start, length(data), Code.OK.intValue());
+            return createdPath;
+        } catch (KeeperException e) {
+            throw failed(create, start, e);
+        }
+    }
+
+    @Override
+    public void create(String path, final byte[] data, List<ACL> acl, CreateMode createMode,
+                       final StringCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.create(path, data, acl, createMode, new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                completed(create, start, length(data), rc);
+                cb.processResult(rc, path, ctx, name);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            super.delete(path, version);
+            completed(delete, start, 0, Code.OK.intValue());
+        } catch (KeeperException e) {
+            throw failed(delete, start, e);
+        }
+    }
+
+    @Override
+    public void delete(String path, int version, final VoidCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.delete(path, version, new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                completed(delete, start, 0, rc);
+                cb.processResult(rc, path, ctx);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final Stat stat = super.setData(path, data, version);
+            completed(setData, start, length(data), Code.OK.intValue());
+            return stat;
+        } catch (KeeperException e) {
+            throw failed(setData, start, e);
+        }
+    }
+
+    @Override
+    public void setData(String path, final byte[] data, int version, final StatCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.setData(path, data, version, new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                completed(setData, start, length(data), rc);
+                cb.processResult(rc, path, ctx, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException, InterruptedException {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        try {
+            final Stat stat = super.setACL(path, acl, version);
+            completed(setACL, start, 0, Code.OK.intValue());
+            return stat;
+        } catch (KeeperException e) {
+            throw failed(setACL, start, e);
+        }
+    }
+
+    @Override
+    public void setACL(String path, List<ACL> acl, int version, final StatCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.setACL(path, acl, version, new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                completed(setACL, start, 0, rc);
+                cb.processResult(rc, path, ctx, stat);
+            }
+        }, ctx);
+    }
+
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        throttle.acquire(Iterables.size(ops));
+        final long start = System.nanoTime();
+        try {
+            final List<OpResult> results = super.multi(ops);
+            completed(multi, start, 0, Code.OK.intValue());
+            return results;
+        } catch (KeeperException e) {
+            throw failed(multi, start, e);
+        }
+    }
+
+    @Override
+    public void sync(String path, final VoidCallback cb, Object ctx) {
+        throttle.acquire();
+        final long start = System.nanoTime();
+        super.sync(path, new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                completed(sync, start, 0, rc);
+                cb.processResult(rc, path, ctx);
+            }
+        }, ctx);
+    }
+}
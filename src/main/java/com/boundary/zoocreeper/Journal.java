@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.SortedMap;
+
+/**
+ * Append-only log of znode changes written by {@link ContinuousBackup}.
+ * <p>
+ * Each line is a JSON object holding a single incremental backup entry (see {@link IncrementalBackup}) with the state
+ * of a znode after a change. Since entries are states rather than operations, replaying a journal more than once
+ * gives the same result.
+ */
+class Journal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonGenerator jgen;
+    private long entries = 0;
+
+    private Journal(JsonGenerator jgen) {
+        this.jgen = jgen;
+        // Entries are separated by newlines instead
+        jgen.setRootValueSeparator(null);
+    }
+
+    /**
+     * Creates an empty journal, replacing any existing file.
+     */
+    static Journal create(String file) throws IOException {
+        return new Journal(JSON_FACTORY.createGenerator(new BufferedOutputStream(new FileOutputStream(file)),
+                JsonEncoding.UTF8));
+    }
+
+    /**
+     * Appends an entry to the journal, flushing it to the file.
+     */
+    void append(BackupZNode zNode) throws IOException {
+        jgen.writeStartObject();
+        Backup.dumpZNode(jgen, zNode);
+        jgen.writeEndObject();
+        jgen.writeRaw('\n');
+        jgen.flush();
+        entries++;
+    }
+
+    /**
+     * Returns the number of entries appended to this journal.
+     */
+    long getEntries() {
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        jgen.close();
+    }
+
+    /**
+     * Reads the latest entry for each znode in a journal, in sorted depth-first order. A missing journal is empty, and
+     * a truncated last entry (from a crash while appending) is ignored.
+     */
+    static SortedMap<String, BackupZNode> read(String file) throws IOException {
+        final SortedMap<String, BackupZNode> latest = Maps.newTreeMap(ZooKeeperPaths.DEPTH_FIRST_ORDER);
+        final BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return latest;
+        }
+        try {
+            String nextLine = reader.readLine();
+            while (nextLine != null) {
+                final String line = nextLine;
+                nextLine = reader.readLine();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final BackupZNode zNode;
+                try {
+                    zNode = new JsonBackupReader(JSON_FACTORY.createParser(line), true).next();
+                } catch (IOException e) {
+                    if (nextLine != null) {
+                        throw e;
+                    }
+                    LOGGER.warn("Ignoring truncated journal entry: {}", line);
+                    break;
+                }
+                if (zNode == null) {
+                    continue;
+                }
+                final BackupZNode previous = latest.get(zNode.path);
+                if (!zNode.hasContent() && !zNode.isDeleted() && previous != null && previous.hasContent()) {
+                    // Keep the data and ACLs from the earlier entry
+                    latest.put(zNode.path, new BackupZNode(zNode.path, zNode.stat, previous.data, previous.acls));
+                } else {
+                    latest.put(zNode.path, zNode);
+                }
+            }
+        } finally {
+            Closeables.close(reader, true);
+        }
+        return latest;
+    }
+
+    /**
+     * Returns an incremental backup reader over the entries returned by {@link #read(String)}.
+     */
+    static BackupReader reader(SortedMap<String, BackupZNode> entries) {
+        final Iterator<BackupZNode> it = entries.values().iterator();
+        return new BackupReader() {
+            @Override
+            public BackupZNode next() {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads a backup written by {@link Backup} as a JSON object keyed by path.
+ * <p>
+ * An incremental backup may also contain znodes without data and ACLs (only the stat changed), and null values
+ * (the znode was deleted). References to deduplicated data and ACLs (see {@link JsonBackupWriter}) are resolved as the
+ * backup is read, and ACL lists are interned so znodes with the same ACLs share them.
+ */
+class JsonBackupReader implements BackupReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonBackupReader.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser jp;
+    private final boolean incremental;
+    /**
+     * Deduplicated data, by id.
+     */
+    private final List<byte[]> payloads = Lists.newArrayList();
+    /**
+     * Deduplicated ACL lists, by id.
+     */
+    private final List<List<ACL>> aclLists = Lists.newArrayList();
+    private final AclInterner aclInterner = new AclInterner();
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * Creates a reader for the backup in the specified parser.
+     *
+     * @param jp Parser positioned before the start of the backup.
+     * @param incremental True if the backup may be an incremental backup.
+     */
+    JsonBackupReader(JsonParser jp, boolean incremental) {
+        this.jp = jp;
+        this.incremental = incremental;
+    }
+
+    JsonBackupReader(InputStream is, boolean incremental) throws IOException {
+        this(JSON_FACTORY.createParser(is), incremental);
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        if (!started) {
+            expectNextToken(jp, JsonToken.START_OBJECT);
+            started = true;
+        }
+        if (finished || jp.nextToken() == JsonToken.END_OBJECT) {
+            finished = true;
+            return null;
+        }
+        final String path = jp.getCurrentName();
+        if (jp.nextToken() == JsonToken.VALUE_NULL && incremental) {
+            return new BackupZNode(path, null, null, null);
+        }
+        expectCurrentToken(jp, JsonToken.START_OBJECT);
+        return readZNode(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jp.close();
+    }
+
+    private static void expectNextToken(JsonParser jp, JsonToken expected) throws IOException {
+        if (jp.nextToken() != expected) {
+            throw new IOException(String.format("Expected: %s, Found: %s", expected, jp.getCurrentToken()));
+        }
+    }
+
+    private static void expectCurrentToken(JsonParser jp, JsonToken expected) throws IOException {
+        final JsonToken currentToken = jp.getCurrentToken();
+        if (currentToken != expected) {
+            throw new IOException(String.format("Expected: %s, Found: %s", expected, currentToken));
+        }
+    }
+
+    private static final ImmutableList<String> REQUIRED_ZNODE_FIELDS = ImmutableList.of(Backup.FIELD_EPHEMERAL_OWNER,
+            Backup.FIELD_DATA, Backup.FIELD_ACLS);
+
+    private BackupZNode readZNode(String path) throws IOException {
+        final Stat stat = new Stat();
+        byte[] data = null;
+        List<ACL> acls = null;
+        int dataId = -1;
+        int dataRef = -1;
+        int aclsId = -1;
+        int aclsRef = -1;
+        final Set<String> seenFields = Sets.newHashSet();
+        while (jp.nextToken() != JsonToken.END_OBJECT) {
+            jp.nextValue();
+            final String fieldName = jp.getCurrentName();
+            seenFields.add(fieldName);
+            if (Backup.FIELD_AVERSION.equals(fieldName)) {
+                stat.setAversion(jp.getIntValue());
+            } else if (Backup.FIELD_CTIME.equals(fieldName)) {
+                stat.setCtime(jp.getLongValue());
+            } else if (Backup.FIELD_CVERSION.equals(fieldName)) {
+                stat.setCversion(jp.getIntValue());
+            } else if (Backup.FIELD_CZXID.equals(fieldName)) {
+                stat.setCzxid(jp.getLongValue());
+            } else if (Backup.FIELD_EPHEMERAL_OWNER.equals(fieldName)) {
+                stat.setEphemeralOwner(jp.getLongValue());
+            } else if (Backup.FIELD_MTIME.equals(fieldName)) {
+                stat.setMtime(jp.getLongValue());
+            } else if (Backup.FIELD_MZXID.equals(fieldName)) {
+                stat.setMzxid(jp.getLongValue());
+            } else if (Backup.FIELD_NUM_CHILDREN.equals(fieldName)) {
+                stat.setNumChildren(jp.getIntValue());
+            } else if (Backup.FIELD_PZXID.equals(fieldName)) {
+                stat.setPzxid(jp.getLongValue());
+            } else if (Backup.FIELD_VERSION.equals(fieldName)) {
+                stat.setVersion(jp.getIntValue());
+            } else if (Backup.FIELD_DATA.equals(fieldName)) {
+                if (jp.getCurrentToken() == JsonToken.VALUE_NULL) {
+                    data = null;
+                }
+                else {
+                    data = jp.getBinaryValue();
+                }
+            } else if (Backup.FIELD_DATA_ID.equals(fieldName)) {
+                dataId = jp.getIntValue();
+            } else if (Backup.FIELD_DATA_REF.equals(fieldName)) {
+                dataRef = jp.getIntValue();
+            } else if (Backup.FIELD_ACLS.equals(fieldName)) {
+                acls = readACLs();
+            } else if (Backup.FIELD_ACLS_ID.equals(fieldName)) {
+                aclsId = jp.getIntValue();
+            } else if (Backup.FIELD_ACLS_REF.equals(fieldName)) {
+                aclsRef = jp.getIntValue();
+            } else {
+                LOGGER.debug("Ignored field: {}", fieldName);
+            }
+        }
+        if (seenFields.contains(Backup.FIELD_DATA_REF)) {
+            if (dataRef < 0 || dataRef >= payloads.size()) {
+                throw new IOException("Unknown data reference: " + dataRef);
+            }
+            data = payloads.get(dataRef);
+            seenFields.add(Backup.FIELD_DATA);
+        } else if (seenFields.contains(Backup.FIELD_DATA_ID)) {
+            if (dataId != payloads.size() || data == null) {
+                throw new IOException("Invalid data id: " + dataId);
+            }
+            payloads.add(data);
+        }
+        if (seenFields.contains(Backup.FIELD_ACLS_REF)) {
+            if (aclsRef < 0 || aclsRef >= aclLists.size()) {
+                throw new IOException("Unknown ACLs reference: " + aclsRef);
+            }
+            acls = aclLists.get(aclsRef);
+            seenFields.add(Backup.FIELD_ACLS);
+        } else if (seenFields.contains(Backup.FIELD_ACLS_ID)) {
+            if (aclsId != aclLists.size() || acls == null) {
+                throw new IOException("Invalid ACLs id: " + aclsId);
+            }
+            aclLists.add(acls);
+        }
+        if (incremental && !seenFields.contains(Backup.FIELD_DATA) && !seenFields.contains(Backup.FIELD_ACLS)
+                && seenFields.contains(Backup.FIELD_EPHEMERAL_OWNER)) {
+            // Only the stat changed
+            return new BackupZNode(path, stat, null, null);
+        }
+        if (!seenFields.containsAll(REQUIRED_ZNODE_FIELDS)) {
+            throw new IOException("Missing required fields: " + REQUIRED_ZNODE_FIELDS);
+        }
+        return new BackupZNode(path, stat, data, acls);
+    }
+
+    private List<ACL> readACLs() throws IOException {
+        expectCurrentToken(jp, JsonToken.START_ARRAY);
+        final List<ACL> acls = Lists.newArrayListWithCapacity(2);
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            acls.add(readACL());
+        }
+        return aclInterner.intern(acls);
+    }
+
+    private static final ImmutableList<String> REQUIRED_ACL_FIELDS = ImmutableList.of(Backup.FIELD_ACL_SCHEME,
+            Backup.FIELD_ACL_ID, Backup.FIELD_ACL_PERMS);
+
+    private ACL readACL() throws IOException {
+        expectCurrentToken(jp, JsonToken.START_OBJECT);
+        String scheme = null;
+        String id = null;
+        int perms = -1;
+        final Set<String> seenFields = Sets.newHashSet();
+        while (jp.nextToken() != JsonToken.END_OBJECT) {
+            jp.nextValue();
+            final String fieldName = jp.getCurrentName();
+            seenFields.add(fieldName);
+            if (Backup.FIELD_ACL_SCHEME.equals(fieldName)) {
+                scheme = jp.getValueAsString();
+            } else if (Backup.FIELD_ACL_ID.equals(fieldName)) {
+                id = jp.getValueAsString();
+            } else if (Backup.FIELD_ACL_PERMS.equals(fieldName)) {
+                perms = jp.getIntValue();
+            } else {
+                throw new IOException("Unexpected field: " + fieldName);
+            }
+        }
+        if (!seenFields.containsAll(REQUIRED_ACL_FIELDS)) {
+            throw new IOException("Missing required ACL fields: " + REQUIRED_ACL_FIELDS);
+        }
+        return aclInterner.acl(perms, scheme, id);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a backup as a JSON object keyed by path (see {@link Backup#dumpNode}).
+ * <p>
+ * When deduplicating, data in the {@link PayloadDictionary} is written once with a "dataId" field, and later znodes
+ * with the same data have a "dataRef" field instead of "data". Likewise, each distinct list of ACLs in the
+ * {@link AclTable} is written once with an "aclsId" field, and later znodes have an "aclsRef" field instead of "acls".
+ */
+class JsonBackupWriter implements BackupWriter {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonBackupWriter.class);
+
+    private final JsonGenerator jgen;
+    private final PayloadDictionary dictionary;
+    private final AclTable aclTable;
+    private int definedIds = 0;
+
+    JsonBackupWriter(OutputStream os, boolean prettyPrint, boolean dedup) throws IOException {
+        this(os, prettyPrint, dedup, false);
+    }
+
+    /**
+     * @param resumed True to continue a backup which was truncated after a complete znode (see {@link Checkpoint}).
+     */
+    JsonBackupWriter(OutputStream os, boolean prettyPrint, boolean dedup, boolean resumed) throws IOException {
+        this.dictionary = dedup ? new PayloadDictionary() : null;
+        this.aclTable = dedup ? new AclTable() : null;
+        jgen = JSON_FACTORY.createGenerator(resumed ? new ContinuationOutputStream(os) : os);
+        if (prettyPrint) {
+            jgen.setPrettyPrinter(new DefaultPrettyPrinter());
+        }
+        jgen.writeStartObject();
+    }
+
+    @Override
+    public void write(BackupZNode zNode) throws IOException {
+        if (dictionary == null || !zNode.hasContent()) {
+            Backup.dumpZNode(jgen, zNode);
+            return;
+        }
+        final int dataId = dictionary.lookup(zNode.data);
+        final boolean reference = dataId >= 0 && dataId < definedIds;
+        if (dataId == definedIds) {
+            definedIds++;
+        }
+        final int definedAcls = aclTable.size();
+        final int aclsId = aclTable.lookup(zNode.acls);
+        final boolean aclsReference = aclsId >= 0 && aclsId < definedAcls;
+        Backup.dumpNode(jgen, zNode.path, zNode.stat, zNode.acls, zNode.data, dataId, reference, aclsId,
+                aclsReference);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        jgen.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (dictionary != null) {
+                dictionary.log(LOGGER);
+            }
+            jgen.writeEndObject();
+        } finally {
+            jgen.close();
+        }
+    }
+
+    /**
+     * Replaces the start of the object written by a new generator with the separator which follows the last znode of
+     * a truncated backup.
+     */
+    private static class ContinuationOutputStream extends FilterOutputStream {
+        private boolean started = false;
+
+        ContinuationOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!started && len > 0) {
+                if (b[off] != '{') {
+                    throw new IOException("Expected the start of the backup object");
+                }
+                started = true;
+                out.write(',');
+                off++;
+                len--;
+            }
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Command-line utility used to merge a full backup with incremental backups (see {@link IncrementalBackup}) into a
+ * full backup which can be restored.
+ */
+public class Merge {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Merge.class);
+
+    private final MergeOptions options;
+
+    public Merge(MergeOptions options) {
+        this.options = Preconditions.checkNotNull(options);
+    }
+
+    public void merge(OutputStream os) throws IOException {
+        BackupReader reader = null;
+        try {
+            LOGGER.info("Reading baseline: {}", options.inputFiles.get(0));
+            reader = options.format.open(options.inputFiles.get(0), options.compression(), false);
+            for (String deltaFile : options.inputFiles.subList(1, options.inputFiles.size())) {
+                LOGGER.info("Applying delta: {}", deltaFile);
+                final BackupReader delta = options.format.open(deltaFile, options.compression(), true);
+                try {
+                    reader = new BackupMerger(reader, delta);
+                } catch (IOException e) {
+                    Closeables.close(delta, true);
+                    throw e;
+                }
+            }
+            if (options.journalFile != null) {
+                LOGGER.info("Applying journal: {}", options.journalFile);
+                reader = new BackupMerger(reader, Journal.reader(Journal.read(options.journalFile)));
+            }
+            final BackupWriter writer = options.format.createWriter(os, options.prettyPrint, options.dedup);
+            long count = 0;
+            for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+                writer.write(zNode);
+                count++;
+            }
+            writer.close();
+            LOGGER.info("Merged backup contains {} znodes", count);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(Merge.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException {
+        MergeOptions options = new MergeOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(Merge.class.getPackage().getName());
+        }
+        Merge merge = new Merge(options);
+        OutputStream os;
+        if ("-".equals(options.outputFile)) {
+            os = System.out;
+        } else {
+            os = new BufferedOutputStream(new FileOutputStream(options.outputFile));
+        }
+        try {
+            os = options.compression().wrap(os);
+            merge.merge(os);
+        } finally {
+            os.flush();
+            Closeables.close(os, true);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options to the {@link Merge} command.
+ */
+class MergeOptions {
+
+    @Option(name = "-f", aliases = { "--file" }, usage = "Output file for the merged backup (default: stdout)",
+            required = false, metaVar = "<filename>")
+    String outputFile = "-";
+
+    @Option(name = "--compress", usage = "Compress output / Decompress input", required = false)
+    boolean compress = false;
+
+    @Option(name = "--codec", usage = "Compression codec: GZIP or SNAPPY (default: GZIP)", required = false,
+            metaVar = "<codec>")
+    Codec codec = Codec.GZIP;
+
+    @Option(name = "--compress-threads", usage = "Number of threads used to compress / decompress (default: number of"
+            + " processors)", required = false, metaVar = "<threads>")
+    int compressThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--format", usage = "Format of the backup files: JSON or BINARY (default: JSON)", required = false,
+            metaVar = "<format>")
+    BackupFormat format = BackupFormat.JSON;
+
+    @Option(name = "--dedup", usage = "Write repeated znode data and ACL lists once and refer to them by id",
+            required = false)
+    boolean dedup = false;
+
+    @Option(name = "--pretty-print", usage = "Pretty printing of JSON output", required = false)
+    boolean prettyPrint = false;
+
+    @Option(name = "--journal", usage = "Journal written by 'Backup --watch' to apply after the other backups",
+            required = false, metaVar = "<journal_file>")
+    String journalFile = null;
+
+    @Option(name = "-v", aliases = { "--verbose" }, usage = "Verbose logging output", required = false)
+    boolean verbose;
+
+    @Option(name = "-h", aliases = { "--help" }, usage = "Show usage information")
+    boolean help;
+
+    @Argument(usage = "Full backup followed by the incremental backups to apply to it, in order", required = true,
+            multiValued = true, metaVar = "<baseline_file> <delta_file>...")
+    List<String> inputFiles = new ArrayList<String>();
+
+    Compression compression() {
+        return Compression.of(compress, codec, compressThreads);
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counters and per-operation (and per-server) {@link LatencyHistogram}s of a backup or restore, which
+ * can be exposed over JMX while it runs and written as a JSON summary at the end.
+ */
+class Metrics implements MetricsMXBean {
+    static final String ZNODES = "znodes";
+    static final String DATA_BYTES = "dataBytes";
+    static final String RETRIES = "retries";
+    static final String NO_NODE = "noNode";
+    static final String INPUT_BYTES = "inputBytes";
+    static final String OUTPUT_BYTES = "outputBytes";
+
+    private static final String DOMAIN = Metrics.class.getPackage().getName();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> operations =
+            new ConcurrentSkipListMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, LatencyHistogram> servers =
+            new ConcurrentSkipListMap<String, LatencyHistogram>();
+    private volatile String jmxType;
+
+    /**
+     * Returns the histogram of an operation, creating it when first used.
+     */
+    LatencyHistogram operation(String name) {
+        return histogram(operations, name, "operation");
+    }
+
+    /**
+     * Returns the histogram of the requests sent to one server (host:port), creating it when first used.
+     */
+    LatencyHistogram server(String name) {
+        return histogram(servers, name, "server");
+    }
+
+    private LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String name,
+                                       String key) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+                final String type = jmxType;
+                if (type != null) {
+                    register(histogram, histogramName(type, key, name));
+                }
+            }
+        }
+        return histogram;
+    }
+
+    void increment(String counter) {
+        add(counter, 1);
+    }
+
+    void add(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            final AtomicLong newValue = new AtomicLong();
+            value = counters.putIfAbsent(counter, newValue);
+            if (value == null) {
+                value = newValue;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    long get(String counter) {
+        final AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Returns a writer which counts the znodes and data bytes written to the specified writer.
+     */
+    BackupWriter meter(final BackupWriter writer) {
+        return new BackupWriter() {
+            @Override
+            public void write(BackupZNode zNode) throws IOException {
+                writer.write(zNode);
+                count(zNode);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Returns a reader which counts the znodes and data bytes read from the specified reader.
+     */
+    BackupReader meter(final BackupReader reader) {
+        return new BackupReader() {
+            @Override
+            public BackupZNode next() throws IOException {
+                final BackupZNode zNode = reader.next();
+                if (zNode != null) {
+                    count(zNode);
+                }
+                return zNode;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    private void count(BackupZNode zNode) {
+        increment(ZNODES);
+        if (zNode.data != null) {
+            add(DATA_BYTES, zNode.data.length);
+        }
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> values = Maps.newTreeMap();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getRates() {
+        final double seconds = Math.max(getElapsedMillis(), 1) / 1000.0;
+        final Map<String, Double> rates = Maps.newTreeMap();
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            rates.put(entry.getKey(), entry.getValue() / seconds);
+        }
+        return rates;
+    }
+
+    /**
+     * Registers these metrics (and one bean per operation and server) with the platform MBean server, using the
+     * specified type in the object names (e.g. "com.boundary.zoocreeper:type=Backup").
+     */
+    void registerMBeans(String type) {
+        jmxType = type;
+        register(this, objectName("type=" + type));
+        for (LatencyHistogram histogram : operations.values()) {
+            register(histogram, histogramName(type, "operation", histogram.getName()));
+        }
+        for (LatencyHistogram histogram : servers.values()) {
+            register(histogram, histogramName(type, "server", histogram.getName()));
+        }
+    }
+
+    void unregisterMBeans() {
+        final String type = jmxType;
+        if (type == null) {
+            return;
+        }
+        jmxType = null;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName("type=" + type));
+            for (String name : operations.keySet()) {
+                unregister(server, histogramName(type, "operation", name));
+            }
+            for (String name : servers.keySet()) {
+                unregister(server, histogramName(type, "server", name));
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Failed to unregister metrics MBeans", e);
+        }
+    }
+
+    private static void unregister(MBeanServer server, ObjectName name) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static ObjectName histogramName(String type, String key, String name) {
+        // Server names contain a colon, so they must be quoted
+        final String value = name.matches("[\\w.-]*") ? name : ObjectName.quote(name);
+        return objectName("type=" + type + "," + key + "=" + value);
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void register(Object bean, ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register MBean: " + name, e);
+        }
+    }
+
+    void log(Logger logger) {
+        logger.info("Processed {} znodes in {} ms", get(ZNODES), getElapsedMillis());
+        for (LatencyHistogram histogram : operations.values()) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            logger.debug("{}: count={}, errors={}, mean={}us, p50={}us, p95={}us, p99={}us, max={}us",
+                    new Object[] { histogram.getName(), histogram.getCount(), histogram.getErrors(),
+                            histogram.getMeanMicros(), histogram.getP50Micros(), histogram.getP95Micros(),
+                            histogram.getP99Micros(), histogram.getMaxMicros() });
+        }
+        for (LatencyHistogram histogram : servers.values()) {
+            logger.info("Server {}: {} requests, {} errors, {} bytes, mean={}us, p99={}us",
+                    new Object[] { histogram.getName(), histogram.getCount(), histogram.getErrors(),
+                            histogram.getBytes(), histogram.getMeanMicros(), histogram.getP99Micros() });
+        }
+    }
+
+    /**
+     * Writes a JSON summary of the counters, rates and operation latencies to a file.
+     *
+     * @param restoreStats Counts of what a restore did (or null for a backup).
+     */
+    void writeJson(String file, RestoreStats restoreStats) throws IOException {
+        final JsonGenerator jgen = createGenerator(file);
+        try {
+            write(jgen, restoreStats);
+        } finally {
+            jgen.close();
+        }
+    }
+
+    /**
+     * Writes a JSON summary of the metrics of both sides of a {@link Copy} to a file.
+     */
+    static void writeJson(String file, Metrics source, Metrics target, RestoreStats restoreStats) throws IOException {
+        final JsonGenerator jgen = createGenerator(file);
+        try {
+            jgen.writeStartObject();
+            jgen.writeFieldName("source");
+            source.write(jgen, null);
+            jgen.writeFieldName("target");
+            target.write(jgen, restoreStats);
+            jgen.writeEndObject();
+        } finally {
+            jgen.close();
+        }
+    }
+
+    private static JsonGenerator createGenerator(String file) throws IOException {
+        final JsonGenerator jgen = JSON_FACTORY.createGenerator(new File(file), JsonEncoding.UTF8);
+        jgen.setPrettyPrinter(new DefaultPrettyPrinter());
+        return jgen;
+    }
+
+    private void write(JsonGenerator jgen, RestoreStats restoreStats) throws IOException {
+        jgen.writeStartObject();
+        jgen.writeNumberField("elapsedMillis", getElapsedMillis());
+
+        jgen.writeObjectFieldStart("counters");
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            jgen.writeNumberField(entry.getKey(), entry.getValue());
+        }
+        jgen.writeEndObject();
+
+        jgen.writeObjectFieldStart("rates");
+        for (Map.Entry<String, Double> entry : getRates().entrySet()) {
+            jgen.writeNumberField(entry.getKey() + "PerSecond", entry.getValue());
+        }
+        jgen.writeEndObject();
+
+        if (restoreStats != null) {
+            jgen.writeObjectFieldStart("restore");
+            jgen.writeNumberField("created", restoreStats.created);
+            jgen.writeNumberField("updated", restoreStats.updated);
+            jgen.writeNumberField("unchanged", restoreStats.unchanged);
+            jgen.writeNumberField("existing", restoreStats.existing);
+            jgen.writeNumberField("conflicts", restoreStats.conflicts);
+            jgen.writeEndObject();
+        }
+
+        writeHistograms(jgen, "operations", operations);
+        if (!servers.isEmpty()) {
+            writeHistograms(jgen, "servers", servers);
+        }
+
+        jgen.writeEndObject();
+    }
+
+    private static void writeHistograms(JsonGenerator jgen, String field, Map<String, LatencyHistogram> histograms)
+            throws IOException {
+        jgen.writeObjectFieldStart(field);
+        for (LatencyHistogram histogram : histograms.values()) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            jgen.writeObjectFieldStart(histogram.getName());
+            jgen.writeNumberField("count", histogram.getCount());
+            jgen.writeNumberField("errors", histogram.getErrors());
+            jgen.writeNumberField("bytes", histogram.getBytes());
+            jgen.writeNumberField("meanMicros", histogram.getMeanMicros());
+            jgen.writeNumberField("p50Micros", histogram.getP50Micros());
+            jgen.writeNumberField("p95Micros", histogram.getP95Micros());
+            jgen.writeNumberField("p99Micros", histogram.getP99Micros());
+            jgen.writeNumberField("maxMicros", histogram.getMaxMicros());
+            jgen.writeEndObject();
+        }
+        jgen.writeEndObject();
+    }
+}
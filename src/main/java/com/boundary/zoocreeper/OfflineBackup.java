@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Backup traversal which reads the snapshots and transaction logs of a ZooKeeper server instead of connecting to
+ * ZooKeeper, so it puts no load on the ensemble.
+ * <p>
+ * The newest valid snapshot which ends at or before the --zxid is loaded into a {@link DataTree}, the transactions
+ * logged after it are replayed up to the --zxid, and the tree is written in the same sorted depth-first order as
+ * {@link Backup}. The data directories are only read, so they can belong to a running server (the last transactions
+ * it logged may not be synced yet).
+ */
+class OfflineBackup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OfflineBackup.class);
+
+    // Snapshots and transaction logs are kept in this subdirectory of the dataDir and dataLogDir
+    static final String VERSION_DIR = "version-2";
+    private static final String SNAPSHOT_PREFIX = "snapshot";
+    // Number of the most recent snapshots to try if the newer ones are invalid
+    private static final int MAX_SNAPSHOTS = 100;
+
+    private final BackupOptions options;
+    private final BackupWriter writer;
+
+    OfflineBackup(BackupOptions options, BackupWriter writer) {
+        this.options = options;
+        this.writer = writer;
+    }
+
+    /**
+     * Backs up the tree rooted at the specified path, as of the --zxid.
+     */
+    void backup(String rootPath) throws IOException {
+        final File dataDir = new File(options.dataDir);
+        final File dataLogDir = new File((options.dataLogDir != null) ? options.dataLogDir : options.dataDir);
+        final DataTree dataTree = load(dataDir, dataLogDir, options.getZxid());
+        LOGGER.info("Loaded {} znodes as of zxid 0x{}", dataTree.getNodeCount(),
+                Long.toHexString(dataTree.lastProcessedZxid));
+        if (dataTree.getNode(rootPath) == null) {
+            LOGGER.warn("Root path not found: {}", rootPath);
+            return;
+        }
+        backup(dataTree, rootPath);
+    }
+
+    private void backup(DataTree dataTree, String path) throws IOException {
+        final Stat stat = new Stat();
+        final List<ACL> acls;
+        final byte[] data;
+        final List<String> children;
+        try {
+            acls = options.aclInterner.intern(Backup.nullToEmpty(dataTree.getACL(path, stat)));
+            if (stat.getEphemeralOwner() != 0 && !options.backupEphemeral) {
+                LOGGER.debug("Skipping ephemeral node: {}", path);
+                return;
+            }
+            data = dataTree.getData(path, stat, null);
+            children = dataTree.getChildren(path, null, null);
+        } catch (NoNodeException e) {
+            // The tree isn't modified while it's written
+            throw new IllegalStateException("Node disappeared from snapshot: " + path, e);
+        }
+        LOGGER.debug("Backing up node: {}", path);
+        writer.write(new BackupZNode(path, stat, data, acls));
+        for (String childPath : Backup.getChildPaths(options, path, children)) {
+            backup(dataTree, childPath);
+        }
+    }
+
+    /**
+     * Loads the state of ZooKeeper as of a zxid from the snapshots in a dataDir and the transaction logs in a
+     * dataLogDir (which may be the same directory).
+     *
+     * @param zxid Last transaction to apply (Long.MAX_VALUE for all of the logged transactions).
+     */
+    static DataTree load(File dataDir, File dataLogDir, long zxid) throws IOException {
+        final File snapDir = versionDir(dataDir);
+        final File logDir = versionDir(dataLogDir);
+        final DataTree dataTree = loadSnapshot(snapDir, zxid);
+        final FileTxnLog txnLog = new FileTxnLog(logDir);
+        final TxnIterator it = txnLog.read(dataTree.lastProcessedZxid + 1);
+        long replayed = 0;
+        try {
+            for (TxnHeader header = it.getHeader(); header != null && header.getZxid() <= zxid;
+                    header = it.next() ? it.getHeader() : null) {
+                if (header.getZxid() > dataTree.lastProcessedZxid) {
+                    // Session transactions are applied as well, so the ephemeral znodes of closed sessions are removed
+                    dataTree.processTxn(header, it.getTxn());
+                    replayed++;
+                }
+            }
+        } finally {
+            it.close();
+            txnLog.close();
+        }
+        LOGGER.info("Replayed {} transactions from: {}", replayed, logDir);
+        if (zxid != Long.MAX_VALUE && dataTree.lastProcessedZxid != zxid) {
+            LOGGER.warn("Transaction 0x{} wasn't found, the backup is as of zxid 0x{}", Long.toHexString(zxid),
+                    Long.toHexString(dataTree.lastProcessedZxid));
+        }
+        return dataTree;
+    }
+
+    private static File versionDir(File dir) throws IOException {
+        final File versionDir = new File(dir, VERSION_DIR);
+        if (!versionDir.isDirectory()) {
+            throw new IOException("No ZooKeeper data found in: " + dir);
+        }
+        return versionDir;
+    }
+
+    /**
+     * Loads the newest valid snapshot taken at or before a zxid (or returns an empty tree if there isn't one).
+     * <p>
+     * Snapshots are fuzzy: the transactions applied while one is written may be in it, so a snapshot named after a
+     * zxid may contain later changes. If the zxid was given, the newest snapshot whose changes all end at or before it
+     * is loaded instead. If there isn't one, the newest snapshot is loaded and the backup may include later
+     * transactions. Changes to ACLs aren't recorded in the stat of a znode, so they aren't detected.
+     */
+    private static DataTree loadSnapshot(File snapDir, long zxid) throws IOException {
+        final FileSnap fileSnap = new FileSnap(snapDir);
+        File fuzzySnapshot = null;
+        for (File snapshot : fileSnap.findNRecentSnapshots(MAX_SNAPSHOTS)) {
+            if (!snapshot.getName().startsWith(SNAPSHOT_PREFIX + ".")) {
+                // Transaction logs may be in the same directory
+                continue;
+            }
+            if (Util.getZxidFromName(snapshot.getName(), SNAPSHOT_PREFIX) > zxid) {
+                continue;
+            }
+            final DataTree dataTree = readSnapshot(fileSnap, snapshot);
+            if (dataTree == null) {
+                continue;
+            }
+            if (zxid != Long.MAX_VALUE) {
+                final long lastZxid = getLastZxid(dataTree, "/");
+                if (lastZxid > zxid) {
+                    LOGGER.info("Snapshot {} contains changes up to zxid 0x{}, trying an older one", snapshot,
+                            Long.toHexString(lastZxid));
+                    if (fuzzySnapshot == null) {
+                        fuzzySnapshot = snapshot;
+                    }
+                    continue;
+                }
+            }
+            LOGGER.info("Loaded snapshot: {}", snapshot);
+            return dataTree;
+        }
+        if (fuzzySnapshot != null) {
+            final DataTree dataTree = readSnapshot(fileSnap, fuzzySnapshot);
+            if (dataTree != null) {
+                LOGGER.warn("No snapshot found which ends at or before zxid 0x{}, the backup may include later "
+                        + "transactions from: {}", Long.toHexString(zxid), fuzzySnapshot);
+                return dataTree;
+            }
+        }
+        LOGGER.info("No snapshot found at or before zxid 0x{} in: {}", Long.toHexString(zxid), snapDir);
+        return new DataTree();
+    }
+
+    /**
+     * Reads a snapshot into a new tree, as of the zxid the snapshot is named after.
+     *
+     * @return The tree, or null if the snapshot is invalid.
+     */
+    private static DataTree readSnapshot(FileSnap fileSnap, File snapshot) {
+        final DataTree dataTree = new DataTree();
+        try {
+            readSnapshot(fileSnap, dataTree, snapshot);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read snapshot: " + snapshot, e);
+            return null;
+        }
+        dataTree.lastProcessedZxid = Util.getZxidFromName(snapshot.getName(), SNAPSHOT_PREFIX);
+        return dataTree;
+    }
+
+    /**
+     * Returns the last zxid which created, modified or deleted a child of a znode or its descendants.
+     */
+    private static long getLastZxid(DataTree dataTree, String path) {
+        final DataNode node = dataTree.getNode(path);
+        long lastZxid = Math.max(node.stat.getCzxid(), Math.max(node.stat.getMzxid(), node.stat.getPzxid()));
+        final Set<String> children = node.getChildren();
+        if (children != null) {
+            for (String child : children) {
+                lastZxid = Math.max(lastZxid, getLastZxid(dataTree, ZooKeeperPaths.createFullPath(path, child)));
+            }
+        }
+        return lastZxid;
+    }
+
+    private static void readSnapshot(FileSnap fileSnap, DataTree dataTree, File snapshot) throws IOException {
+        final CheckedInputStream is = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(snapshot)), new Adler32());
+        try {
+            final InputArchive archive = BinaryInputArchive.getArchive(is);
+            final Map<Long, Integer> sessions = new ConcurrentHashMap<Long, Integer>();
+            fileSnap.deserialize(dataTree, sessions, archive);
+            final long checksum = is.getChecksum().getValue();
+            if (archive.readLong("val") != checksum) {
+                throw new IOException("Checksum mismatch in snapshot: " + snapshot);
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.BadVersionException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Overwrites znodes which already exist in ZooKeeper.
+ * <p>
+ * The current ACLs and data are read first, and only the ones which differ from the backup are written. Writes are
+ * conditional on the versions which were read, so znodes modified concurrently are left alone.
+ */
+class Overwriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Overwriter.class);
+
+    private final ZooKeeper zk;
+    private final RestoreStats stats;
+
+    Overwriter(ZooKeeper zk, RestoreStats stats) {
+        this.zk = zk;
+        this.stats = stats;
+    }
+
+    static boolean aclsChanged(BackupZNode zNode, List<ACL> currentAcls) {
+        return !zNode.acls.equals(currentAcls);
+    }
+
+    static boolean dataChanged(BackupZNode zNode, byte[] currentData) {
+        // ZooKeeper doesn't distinguish between null and empty data
+        final byte[] data = (zNode.data != null) ? zNode.data : new byte[0];
+        return !Arrays.equals(data, (currentData != null) ? currentData : new byte[0]);
+    }
+
+    void updated(BackupZNode zNode) {
+        LOGGER.info("Updated node: {}", zNode.path);
+        stats.updated++;
+    }
+
+    void unchanged(BackupZNode zNode) {
+        LOGGER.debug("Node unchanged: {}", zNode.path);
+        stats.unchanged++;
+    }
+
+    void conflict(BackupZNode zNode) {
+        LOGGER.warn("Node changed concurrently, not overwriting: {}", zNode.path);
+        stats.conflicts++;
+    }
+
+    /**
+     * Overwrites a single znode.
+     */
+    void overwrite(BackupZNode zNode) throws KeeperException, InterruptedException {
+        try {
+            final Stat aclStat = new Stat();
+            final List<ACL> currentAcls = zk.getACL(zNode.path, aclStat);
+            final Stat dataStat = new Stat();
+            final byte[] currentData = zk.getData(zNode.path, false, dataStat);
+            final boolean aclsChanged = aclsChanged(zNode, currentAcls);
+            final boolean dataChanged = dataChanged(zNode, currentData);
+            if (!aclsChanged && !dataChanged) {
+                unchanged(zNode);
+                return;
+            }
+            if (aclsChanged) {
+                zk.setACL(zNode.path, zNode.acls, aclStat.getAversion());
+            }
+            if (dataChanged) {
+                zk.setData(zNode.path, zNode.data, dataStat.getVersion());
+            }
+            updated(zNode);
+        } catch (BadVersionException e) {
+            conflict(zNode);
+        } catch (NoNodeException e) {
+            conflict(zNode);
+        }
+    }
+
+    /**
+     * Overwrites a batch of znodes. The current state of all of the znodes is read concurrently, and data is written
+     * using {@link ZooKeeper#multi(Iterable)} transactions.
+     */
+    void overwrite(List<BackupZNode> zNodes, int batchSize, int maxBatchBytes)
+            throws KeeperException, InterruptedException {
+        final List<CurrentZNode> current = readAll(zNodes);
+        final List<BackupZNode> updates = Lists.newArrayList();
+        final List<Integer> versions = Lists.newArrayList();
+        int updateBytes = 0;
+        for (int i = 0; i < zNodes.size(); i++) {
+            final BackupZNode zNode = zNodes.get(i);
+            final CurrentZNode currentZNode = current.get(i);
+            if (currentZNode.rc == Code.NONODE) {
+                conflict(zNode);
+                continue;
+            } else if (currentZNode.rc != Code.OK) {
+                throw KeeperException.create(currentZNode.rc, zNode.path);
+            }
+            final boolean aclsChanged = aclsChanged(zNode, currentZNode.acls);
+            final boolean dataChanged = dataChanged(zNode, currentZNode.data);
+            if (!aclsChanged && !dataChanged) {
+                unchanged(zNode);
+                continue;
+            }
+            if (aclsChanged) {
+                // ZooKeeper 3.4 has no multi() operation for ACLs
+                try {
+                    zk.setACL(zNode.path, zNode.acls, currentZNode.aclStat.getAversion());
+                } catch (BadVersionException e) {
+                    conflict(zNode);
+                    continue;
+                } catch (NoNodeException e) {
+                    conflict(zNode);
+                    continue;
+                }
+            }
+            if (!dataChanged) {
+                updated(zNode);
+                continue;
+            }
+            final int size = BatchedRestore.estimateSetDataSize(zNode);
+            if (!updates.isEmpty() && (updates.size() >= batchSize || updateBytes + size > maxBatchBytes)) {
+                setData(updates, versions);
+                updateBytes = 0;
+            }
+            updates.add(zNode);
+            versions.add(currentZNode.dataStat.getVersion());
+            updateBytes += size;
+        }
+        setData(updates, versions);
+    }
+
+    private void setData(List<BackupZNode> updates, List<Integer> versions)
+            throws KeeperException, InterruptedException {
+        if (updates.isEmpty()) {
+            return;
+        }
+        final List<Op> ops = Lists.newArrayListWithCapacity(updates.size());
+        for (int i = 0; i < updates.size(); i++) {
+            final BackupZNode zNode = updates.get(i);
+            ops.add(Op.setData(zNode.path, zNode.data, versions.get(i)));
+        }
+        try {
+            zk.multi(ops);
+            for (BackupZNode zNode : updates) {
+                updated(zNode);
+            }
+        } catch (KeeperException e) {
+            LOGGER.debug("Batch of {} updates failed ({}), updating individually", updates.size(), e.code());
+            for (int i = 0; i < updates.size(); i++) {
+                final BackupZNode zNode = updates.get(i);
+                try {
+                    zk.setData(zNode.path, zNode.data, versions.get(i));
+                    updated(zNode);
+                } catch (BadVersionException e1) {
+                    conflict(zNode);
+                } catch (NoNodeException e1) {
+                    conflict(zNode);
+                }
+            }
+        }
+        updates.clear();
+        versions.clear();
+    }
+
+    private List<CurrentZNode> readAll(List<BackupZNode> zNodes) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(zNodes.size() * 2);
+        final List<CurrentZNode> current = Lists.newArrayListWithCapacity(zNodes.size());
+        final ACLCallback aclCallback = new ACLCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+                final CurrentZNode currentZNode = (CurrentZNode) ctx;
+                currentZNode.acls = acl;
+                currentZNode.aclStat = stat;
+                currentZNode.complete(rc);
+                done.countDown();
+            }
+        };
+        final DataCallback dataCallback = new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                final CurrentZNode currentZNode = (CurrentZNode) ctx;
+                currentZNode.data = data;
+                currentZNode.dataStat = stat;
+                currentZNode.complete(rc);
+                done.countDown();
+            }
+        };
+        for (BackupZNode zNode : zNodes) {
+            final CurrentZNode currentZNode = new CurrentZNode();
+            current.add(currentZNode);
+            zk.getACL(zNode.path, null, aclCallback, currentZNode);
+            zk.getData(zNode.path, false, dataCallback, currentZNode);
+        }
+        done.await();
+        return current;
+    }
+
+    /**
+     * Current ACLs and data of a znode, read asynchronously.
+     */
+    static class CurrentZNode {
+        volatile Code rc = Code.OK;
+        volatile List<ACL> acls;
+        volatile Stat aclStat;
+        volatile byte[] data;
+        volatile Stat dataStat;
+
+        void complete(int rc) {
+            final Code code = Code.get(rc);
+            if (code != Code.OK && this.rc != Code.NONODE) {
+                this.rc = code;
+            }
+        }
+    }
+}
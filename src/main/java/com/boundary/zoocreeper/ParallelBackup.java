@@ -0,0 +1,316 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Backup traversal which reads the tree using several ZooKeeper sessions in parallel.
+ * <p>
+ * Each worker owns one session and walks a subtree depth-first. Idle workers steal the pending subtree closest to the
+ * root of a busy worker's traversal, so large subtrees are split recursively however unbalanced the tree is. A stolen
+ * subtree leaves a reference in the victim's output, and the calling thread follows those references to write every
+ * node in the same sorted depth-first order as the single session traversal in {@link Backup}.
+ * <p>
+ * With --distribute-reads, the sessions are spread across the servers of the ensemble, and each worker syncs its
+ * server with the leader before reading a stolen subtree.
+ */
+class ParallelBackup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelBackup.class);
+
+    /**
+     * Number of nodes each subtree may buffer before its worker waits for the writer to catch up.
+     */
+    private static final int TASK_BUFFER_SIZE = 256;
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final Object END_OF_TASK = new Object();
+
+    private final BackupOptions options;
+    private final BackupWriter writer;
+    private final List<Worker> workers = Lists.newArrayList();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final Object lock = new Object();
+    private int activeWorkers = 0; // guarded by lock
+    private volatile boolean finished = false;
+
+    ParallelBackup(BackupOptions options, BackupWriter writer) {
+        Preconditions.checkArgument(options.parallelism > 0, "parallelism must be positive");
+        this.options = options;
+        this.writer = writer;
+    }
+
+    /**
+     * Backs up the tree rooted at the specified path.
+     *
+     * @param zk Session used by the first worker. The remaining sessions are created (and closed) by this method.
+     */
+    void backup(ZooKeeper zk, String rootPath) throws KeeperException, InterruptedException, IOException {
+        final List<Thread> threads = Lists.newArrayList();
+        try {
+            workers.add(new Worker(0, zk));
+            for (int i = 1; i < options.parallelism; i++) {
+                workers.add(new Worker(i, options.createZooKeeper(LOGGER, i)));
+            }
+            final Task root = new Task(rootPath);
+            workers.get(0).initialTask = root;
+            activeWorkers = 1;
+            for (Worker worker : workers) {
+                final Thread thread = new Thread(worker, "backup-worker-" + worker.id);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            write(root);
+        } finally {
+            // Stops any remaining workers if the backup failed
+            finished = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (Worker worker : workers) {
+                if (worker.zk != zk) {
+                    worker.zk.close();
+                }
+            }
+        }
+        final Throwable t = failure.get();
+        if (t != null) {
+            Throwables.propagateIfInstanceOf(t, KeeperException.class);
+            Throwables.propagateIfInstanceOf(t, InterruptedException.class);
+            Throwables.propagateIfInstanceOf(t, IOException.class);
+            throw Throwables.propagate(t);
+        }
+    }
+
+    private boolean isStopped() {
+        return finished || failure.get() != null;
+    }
+
+    private void write(Task task) throws InterruptedException, IOException {
+        while (true) {
+            final Object entry = task.output.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (entry == null) {
+                if (isStopped()) {
+                    return;
+                }
+            } else if (entry == END_OF_TASK) {
+                return;
+            } else if (entry instanceof Task) {
+                write((Task) entry);
+            } else {
+                writer.write((BackupZNode) entry);
+            }
+        }
+    }
+
+    /**
+     * Steals the pending subtree closest to the root from the busy workers.
+     *
+     * @return The stolen subtree, or null if there is no pending work.
+     */
+    private Task steal(Worker thief) {
+        Worker victim = null;
+        int victimDepth = Integer.MAX_VALUE;
+        for (Worker worker : workers) {
+            if (worker != thief) {
+                final int depth = worker.stealableDepth();
+                if (depth < victimDepth) {
+                    victim = worker;
+                    victimDepth = depth;
+                }
+            }
+        }
+        return (victim != null) ? victim.steal(victimDepth) : null;
+    }
+
+    private Task nextTask(Worker worker) throws InterruptedException {
+        synchronized (lock) {
+            while (!isStopped()) {
+                final Task task = steal(worker);
+                if (task != null) {
+                    ++activeWorkers;
+                    return task;
+                }
+                if (activeWorkers == 0) {
+                    // Nobody is left to create more work
+                    lock.notifyAll();
+                    return null;
+                }
+                lock.wait(POLL_INTERVAL_MS);
+            }
+            return null;
+        }
+    }
+
+    private static class Task {
+        private final String path;
+        private final BlockingQueue<Object> output = new ArrayBlockingQueue<Object>(TASK_BUFFER_SIZE);
+
+        private Task(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Children of a node on a worker's depth-first stack. Children before {@link #next} have been visited by the
+     * worker, and children from {@link #end} onwards have been stolen.
+     */
+    private static class Frame {
+        private final List<String> childPaths;
+        private final List<Task> stolen = Lists.newArrayListWithCapacity(0);
+        private int next = 0;
+        private int end;
+
+        private Frame(List<String> childPaths) {
+            this.childPaths = childPaths;
+            this.end = childPaths.size();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int id;
+        private final ZooKeeper zk;
+        private final List<Frame> stack = Lists.newArrayList(); // guarded by this
+        private Task initialTask;
+
+        private Worker(int id, ZooKeeper zk) {
+            this.id = id;
+            this.zk = zk;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Task task = initialTask;
+                initialTask = null;
+                // The session reading the root was synced by the caller
+                boolean synced = (task != null);
+                if (task == null) {
+                    task = nextTask(this);
+                }
+                while (task != null) {
+                    if (!synced && options.readServers != null) {
+                        // Each subtree is read as of a point after it was stolen, however far the server lags
+                        Backup.sync(zk, task.path);
+                    }
+                    synced = false;
+                    LOGGER.debug("Backing up subtree: {}", task.path);
+                    runTask(task);
+                    synchronized (lock) {
+                        --activeWorkers;
+                    }
+                    task = nextTask(this);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+
+        private synchronized int stealableDepth() {
+            for (int i = 0; i < stack.size(); i++) {
+                final Frame frame = stack.get(i);
+                if (frame.next < frame.end) {
+                    return i;
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        private synchronized Task steal(int depth) {
+            if (depth >= stack.size()) {
+                return null;
+            }
+            final Frame frame = stack.get(depth);
+            if (frame.next >= frame.end) {
+                return null;
+            }
+            --frame.end;
+            final Task task = new Task(frame.childPaths.get(frame.end));
+            frame.stolen.add(task);
+            return task;
+        }
+
+        private void runTask(Task task) throws KeeperException, InterruptedException {
+            visit(task, task.path);
+            while (true) {
+                final Frame frame;
+                final String childPath;
+                synchronized (this) {
+                    if (stack.isEmpty()) {
+                        break;
+                    }
+                    frame = stack.get(stack.size() - 1);
+                    if (frame.next < frame.end) {
+                        childPath = frame.childPaths.get(frame.next++);
+                    } else {
+                        childPath = null;
+                        stack.remove(stack.size() - 1);
+                    }
+                }
+                if (childPath != null) {
+                    visit(task, childPath);
+                } else {
+                    // Stolen subtrees follow all of the subtrees visited by this worker (and were stolen last to first)
+                    for (int i = frame.stolen.size() - 1; i >= 0; i--) {
+                        put(task, frame.stolen.get(i));
+                    }
+                }
+            }
+            put(task, END_OF_TASK);
+        }
+
+        private void visit(Task task, String path) throws KeeperException, InterruptedException {
+            try {
+                final BackupZNode zNode = Backup.readZNode(zk, path, options);
+                if (zNode == null) {
+                    return;
+                }
+                LOGGER.debug("Backing up node: {}", path);
+                put(task, zNode);
+                final List<String> childPaths = Backup.getChildPaths(options, path, zk.getChildren(path, false, null));
+                if (!childPaths.isEmpty()) {
+                    synchronized (this) {
+                        stack.add(new Frame(childPaths));
+                    }
+                }
+            } catch (NoNodeException e) {
+                LOGGER.warn("Node disappeared during backup: {}", path);
+            }
+        }
+
+        private void put(Task task, Object entry) throws InterruptedException {
+            while (!task.output.offer(entry, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (isStopped()) {
+                    throw new InterruptedException("Backup aborted");
+                }
+            }
+        }
+    }
+}
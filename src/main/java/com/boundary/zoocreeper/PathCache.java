@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Trie of the paths which are known to exist in ZooKeeper, keyed by path component. Since a znode can't exist without
+ * its parent, adding a path also records all of its ancestors.
+ * <p>
+ * A restore walks the backup in depth-first order and only looks up the ancestors of the current znode, so it calls
+ * {@link #retainPath(String)} as it goes to keep the trie (roughly) the size of the current path rather than the
+ * size of the tree.
+ */
+class PathCache {
+    private final Node root = new Node();
+
+    /**
+     * Returns true if the path (or one of its descendants) has been added.
+     */
+    boolean contains(String path) {
+        Node node = root;
+        for (int start = 1; start < path.length() && node != null; ) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.get(path.substring(start, end));
+            start = end + 1;
+        }
+        return node != null;
+    }
+
+    /**
+     * Records that a path (and therefore all of its ancestors) exists.
+     */
+    void add(String path) {
+        Node node = root;
+        for (int start = 1; start < path.length(); ) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.getOrAdd(path.substring(start, end));
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Forgets the paths which aren't the specified path, one of its ancestors or one of its descendants.
+     */
+    void retainPath(String path) {
+        Node node = root;
+        for (int start = 1; start < path.length() && node != null; ) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.retain(path.substring(start, end));
+            start = end + 1;
+        }
+    }
+
+    private static class Node {
+        private Map<String, Node> children;
+
+        private Node get(String name) {
+            return (children != null) ? children.get(name) : null;
+        }
+
+        /**
+         * Removes all children except the specified one, returning it (or null if it isn't a child).
+         */
+        private Node retain(String name) {
+            if (children == null) {
+                return null;
+            }
+            final Node child = children.get(name);
+            if (children.size() > (child != null ? 1 : 0)) {
+                children.clear();
+                if (child != null) {
+                    children.put(name, child);
+                }
+            }
+            return child;
+        }
+
+        private Node getOrAdd(String name) {
+            if (children == null) {
+                children = Maps.newHashMapWithExpectedSize(1);
+            }
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The --exclude and --include patterns, compiled so that each path is only matched once against each set of rules.
+ * <p>
+ * Patterns which are just literals are matched without regular expressions: anchored prefixes (e.g.
+ * "^/services/foo") and suffixes (e.g. "/lock$") with tries, whole paths with a set, and other literals with
+ * {@link String#contains}. The other patterns anchored at the start are combined into a single alternation which is
+ * only tried at the start of each path. Since a prefix or a contained literal matches every descendant of a path it
+ * matches, they also tell when no descendant of a path can be accepted (see {@link #rejectsDescendants}).
+ */
+class PathFilter {
+    private static final String METACHARACTERS = "\\[](){}.*+?^$|";
+    private static final char ANCHOR_START = '^';
+    private static final char ANCHOR_END = '$';
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    private final Rules excludes;
+    private final Rules includes;
+
+    private PathFilter(Rules excludes, Rules includes) {
+        this.excludes = excludes;
+        this.includes = includes;
+    }
+
+    static PathFilter compile(List<Pattern> excludePatterns, List<Pattern> includePatterns) {
+        return new PathFilter(new Rules(excludePatterns), new Rules(includePatterns));
+    }
+
+    /**
+     * Returns true if the path matches one of the exclude patterns.
+     */
+    boolean isExcluded(String path) {
+        return excludes.matches(path);
+    }
+
+    /**
+     * Returns true if there are no include patterns or the path matches one of them.
+     */
+    boolean isIncluded(String path) {
+        return includes.isEmpty() || includes.matches(path);
+    }
+
+    /**
+     * Returns true if no descendant of the path can be accepted, because the path matches an excluded prefix or
+     * there are only include prefixes and none of them can match a descendant. Returns false if it can't be ruled
+     * out.
+     */
+    boolean rejectsDescendants(String path) {
+        final String descendantPrefix = "/".equals(path) ? path : path + "/";
+        if (excludes.prefixes.matchesPrefixOf(descendantPrefix) || excludes.containsLiteral(path)) {
+            return true;
+        }
+        return !includes.isEmpty() && includes.onlyPrefixes()
+                && !includes.prefixes.matchesPrefixOf(descendantPrefix)
+                && !includes.prefixes.hasExtensionOf(descendantPrefix);
+    }
+
+    /**
+     * Returns the literal matched by a pattern (without the anchors), or null if the pattern isn't a literal
+     * (ignoring anchors at the start and end).
+     */
+    private static String getLiteral(Pattern pattern) {
+        final String regex = pattern.pattern();
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        final int start = (regex.length() > 0 && regex.charAt(0) == ANCHOR_START) ? 1 : 0;
+        final int end = (regex.length() > start && regex.charAt(regex.length() - 1) == ANCHOR_END)
+                ? regex.length() - 1 : regex.length();
+        for (int i = start; i < end; i++) {
+            if (METACHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                return null;
+            }
+        }
+        return regex.substring(start, end);
+    }
+
+    private static class Rules {
+        private final PrefixTrie prefixes = new PrefixTrie();
+        /**
+         * Suffixes, reversed.
+         */
+        private final PrefixTrie suffixes = new PrefixTrie();
+        private final Set<String> paths = Sets.newHashSet();
+        private final List<String> literals = Lists.newArrayList();
+        /**
+         * The patterns which aren't literals and are anchored at the start, combined into one pattern (without the
+         * anchors) which is matched at the start of the path, or null if there aren't any (or they can't be combined).
+         */
+        private final Pattern anchoredRegex;
+        /**
+         * The other patterns which aren't literals. They are matched one at a time, since a pattern starting with a
+         * literal is searched for much faster on its own than as part of an alternation.
+         */
+        private final List<Pattern> regexes = Lists.newArrayList();
+        private final boolean empty;
+
+        private Rules(List<Pattern> patterns) {
+            final List<Pattern> anchored = Lists.newArrayList();
+            for (Pattern pattern : patterns) {
+                final String literal = getLiteral(pattern);
+                final String regex = pattern.pattern();
+                final boolean anchoredStart = regex.length() > 0 && regex.charAt(0) == ANCHOR_START;
+                final boolean anchoredEnd = regex.length() > (anchoredStart ? 1 : 0)
+                        && regex.charAt(regex.length() - 1) == ANCHOR_END;
+                if (literal == null) {
+                    // An alternation at the top level could be anchored in only one branch
+                    if (anchoredStart && regex.indexOf('|') < 0) {
+                        anchored.add(pattern);
+                    } else {
+                        regexes.add(pattern);
+                    }
+                } else if (anchoredStart && anchoredEnd) {
+                    paths.add(literal);
+                } else if (anchoredStart) {
+                    prefixes.add(literal);
+                } else if (anchoredEnd) {
+                    suffixes.add(new StringBuilder(literal).reverse().toString());
+                } else {
+                    literals.add(literal);
+                }
+            }
+            anchoredRegex = combine(anchored);
+            if (anchoredRegex == null) {
+                regexes.addAll(anchored);
+            }
+            empty = patterns.isEmpty();
+        }
+
+        /**
+         * Combines patterns anchored at the start into one alternation of the patterns without their anchors, which
+         * is only tried at the start of a path instead of at every position.
+         *
+         * @return The combined pattern, or null if there are no patterns or they can't be combined.
+         */
+        private static Pattern combine(List<Pattern> patterns) {
+            if (patterns.isEmpty()) {
+                return null;
+            }
+            final List<String> alternatives = Lists.newArrayListWithCapacity(patterns.size());
+            for (Pattern pattern : patterns) {
+                if (pattern.flags() != 0 || BACK_REFERENCE.matcher(pattern.pattern()).find()) {
+                    // Group numbers change when combined
+                    return null;
+                }
+                // Inline flags only apply to the end of the enclosing group
+                alternatives.add("(?:" + pattern.pattern().substring(1) + ")");
+            }
+            try {
+                return Pattern.compile(Joiner.on('|').join(alternatives));
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+
+        private boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Returns true if all of the patterns are anchored prefixes.
+         */
+        private boolean onlyPrefixes() {
+            return paths.isEmpty() && suffixes.isEmpty() && literals.isEmpty() && anchoredRegex == null
+                    && regexes.isEmpty();
+        }
+
+        private boolean containsLiteral(String path) {
+            for (String literal : literals) {
+                if (path.contains(literal)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(String path) {
+            if (prefixes.matchesPrefixOf(path) || suffixes.matchesSuffixOf(path) || paths.contains(path)
+                    || containsLiteral(path)) {
+                return true;
+            }
+            if (anchoredRegex != null && anchoredRegex.matcher(path).lookingAt()) {
+                return true;
+            }
+            for (Pattern regex : regexes) {
+                if (regex.matcher(path).find()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Trie of literal prefixes, keyed by character.
+     */
+    private static class PrefixTrie {
+        private final Node root = new Node();
+
+        private void add(String prefix) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAdd(prefix.charAt(i));
+            }
+            node.terminal = true;
+        }
+
+        /**
+         * Returns true if one of the prefixes is a prefix of the string.
+         */
+        private boolean matchesPrefixOf(String s) {
+            Node node = root;
+            for (int i = 0; node != null; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                node = (i < s.length()) ? node.children.get(s.charAt(i)) : null;
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if one of the (reversed) strings in the trie is a suffix of the string.
+         */
+        private boolean matchesSuffixOf(String s) {
+            Node node = root;
+            for (int i = s.length() - 1; node != null; i--) {
+                if (node.terminal) {
+                    return true;
+                }
+                node = (i >= 0) ? node.children.get(s.charAt(i)) : null;
+            }
+            return false;
+        }
+
+        private boolean isEmpty() {
+            return root.children.isEmpty() && !root.terminal;
+        }
+
+        /**
+         * Returns true if one of the prefixes starts with the string (and is longer).
+         */
+        private boolean hasExtensionOf(String s) {
+            Node node = root;
+            for (int i = 0; i < s.length() && node != null; i++) {
+                node = node.children.get(s.charAt(i));
+            }
+            return node != null && !node.children.isEmpty();
+        }
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = Maps.newHashMap();
+        private boolean terminal = false;
+
+        private Node getOrAdd(char c) {
+            Node child = children.get(c);
+            if (child == null) {
+                child = new Node();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dictionary of repeated znode data, used to write each payload once when deduplicating a backup.
+ * <p>
+ * Payloads are identified by hash, and are added to the dictionary the second time they are seen, so unique payloads
+ * don't take up space in the dictionary (or in the copy of it kept by the reader of the backup). Ids are assigned in
+ * the order payloads are added, starting from zero, and writers define each payload before its first reference.
+ * The dictionary is limited to {@link #MAX_BYTES} of data, which bounds the memory needed to restore the backup.
+ */
+class PayloadDictionary {
+    /**
+     * Payloads shorter than this are cheaper to write than to refer to.
+     */
+    static final int MIN_LENGTH = 16;
+    static final long MAX_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_SEEN = 1024 * 1024;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Map<HashCode, Integer> ids = Maps.newHashMap();
+    private final List<byte[]> payloads = Lists.newArrayList();
+    /**
+     * Hashes of the payloads which have been seen once.
+     */
+    private final Set<HashCode> seen = Sets.newHashSet();
+    private long bytes = 0;
+    private long references = 0;
+    private long savedBytes = 0;
+
+    /**
+     * Looks up a payload, adding it to the dictionary if it has been seen before.
+     *
+     * @return The id of the payload, or -1 if it isn't in the dictionary. Ids of payloads which haven't been written
+     *         yet are the number of payloads written so far.
+     */
+    int lookup(byte[] data) {
+        if (data == null || data.length < MIN_LENGTH) {
+            return -1;
+        }
+        final HashCode hash = HASH_FUNCTION.hashBytes(data);
+        final Integer id = ids.get(hash);
+        if (id != null) {
+            if (!Arrays.equals(payloads.get(id), data)) {
+                // Hash collision
+                return -1;
+            }
+            references++;
+            savedBytes += data.length;
+            return id;
+        }
+        if (seen.remove(hash)) {
+            if (bytes + data.length > MAX_BYTES) {
+                return -1;
+            }
+            final int newId = payloads.size();
+            ids.put(hash, newId);
+            payloads.add(data);
+            bytes += data.length;
+            return newId;
+        }
+        if (seen.size() < MAX_SEEN) {
+            seen.add(hash);
+        }
+        return -1;
+    }
+
+    void log(Logger logger) {
+        logger.info("Deduplicated data: {} payloads in dictionary ({} bytes), {} references ({} bytes saved)",
+                new Object[] { payloads.size(), bytes, references, savedBytes });
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backup traversal built on the asynchronous ZooKeeper API.
+ * <p>
+ * Up to {@link BackupOptions#maxInFlight} znodes are read ahead of the node currently being written, while nodes are
+ * still written in the same sorted depth-first order as the synchronous traversal in {@link Backup}. Pending reads are
+ * issued in depth-first order as well, so the next node to be written is always the first one to be read. The limit
+ * shrinks below --max-in-flight while an adaptive {@link Throttle} is backing off.
+ */
+class PipelinedBackup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedBackup.class);
+
+    private static final Comparator<PendingZNode> DEPTH_FIRST_ORDER = new Comparator<PendingZNode>() {
+        @Override
+        public int compare(PendingZNode n1, PendingZNode n2) {
+            return ZooKeeperPaths.DEPTH_FIRST_ORDER.compare(n1.path, n2.path);
+        }
+    };
+
+    private final BackupOptions options;
+    private final ZooKeeper zk;
+    private final BackupWriter writer;
+    private final BlockingQueue<PendingZNode> completed = new LinkedBlockingQueue<PendingZNode>();
+    private final PriorityQueue<PendingZNode> unread = new PriorityQueue<PendingZNode>(64, DEPTH_FIRST_ORDER);
+    private int outstanding = 0;
+
+    PipelinedBackup(BackupOptions options, ZooKeeper zk, BackupWriter writer) {
+        Preconditions.checkArgument(options.maxInFlight > 0, "maxInFlight must be positive");
+        this.options = options;
+        this.zk = zk;
+        this.writer = writer;
+    }
+
+    /**
+     * Backs up the tree rooted at the specified path.
+     */
+    void backup(String rootPath) throws KeeperException, InterruptedException, IOException {
+        // Nodes which have been discovered but not yet written, with the next node to write on top
+        final Deque<PendingZNode> toWrite = new ArrayDeque<PendingZNode>();
+        final PendingZNode root = new PendingZNode(rootPath);
+        unread.add(root);
+        toWrite.push(root);
+        while (!toWrite.isEmpty()) {
+            readAhead(toWrite.peek());
+            process(completed.take());
+            for (PendingZNode node = completed.poll(); node != null; node = completed.poll()) {
+                process(node);
+            }
+            while (!toWrite.isEmpty() && toWrite.peek().processed) {
+                final PendingZNode node = toWrite.pop();
+                --outstanding;
+                write(node);
+                for (int i = node.children.size() - 1; i >= 0; i--) {
+                    toWrite.push(node.children.get(i));
+                }
+                node.children.clear();
+            }
+        }
+    }
+
+    /**
+     * Issues reads for unread znodes while there is room in the window.
+     *
+     * @param next The next znode to write, which is always read (the window may have shrunk below the number of znodes
+     *             which have been read but are waiting for it to be written).
+     */
+    private void readAhead(PendingZNode next) {
+        while (!unread.isEmpty()
+                && (outstanding < options.getThrottle().getInFlightLimit() || unread.peek() == next)) {
+            final PendingZNode node = unread.poll();
+            ++outstanding;
+            node.remaining.set(3);
+            zk.getACL(node.path, null, aclCallback, node);
+            zk.getData(node.path, false, dataCallback, node);
+            zk.getChildren(node.path, false, childrenCallback, node);
+        }
+    }
+
+    private void process(PendingZNode node) throws KeeperException {
+        if (node.rc != Code.OK) {
+            if (node.rc != Code.NONODE) {
+                throw KeeperException.create(node.rc, node.path);
+            }
+            LOGGER.warn("Node disappeared during backup: {}", node.path);
+            node.skip = true;
+        } else if (node.aclStat.getEphemeralOwner() != 0 && !options.backupEphemeral) {
+            LOGGER.debug("Skipping ephemeral node: {}", node.path);
+            node.skip = true;
+        } else if (node.aclStat.compareTo(node.dataStat) != 0) {
+            if (node.retries >= options.numRetries) {
+                throw new IllegalStateException("Unable to read consistent data for znode: " + node.path);
+            }
+            LOGGER.warn("Retrying getACL / getData to read consistent state");
+            options.metrics.increment(Metrics.RETRIES);
+            ++node.retries;
+            node.remaining.set(2);
+            zk.getACL(node.path, null, aclCallback, node);
+            zk.getData(node.path, false, dataCallback, node);
+            return;
+        } else {
+            for (String childPath : Backup.getChildPaths(options, node.path, node.childPaths)) {
+                final PendingZNode child = new PendingZNode(childPath);
+                node.children.add(child);
+                unread.add(child);
+            }
+        }
+        node.childPaths = null;
+        node.processed = true;
+    }
+
+    private void write(PendingZNode node) throws IOException {
+        if (!node.skip) {
+            LOGGER.debug("Backing up node: {}", node.path);
+            writer.write(new BackupZNode(node.path, node.aclStat, node.data,
+                    options.aclInterner.intern(Backup.nullToEmpty(node.acls))));
+            if (node.childrenDisappeared) {
+                LOGGER.warn("Node disappeared during backup: {}", node.path);
+            }
+        }
+        // Release the node's contents as soon as it has been written
+        node.acls = null;
+        node.data = null;
+    }
+
+    private void complete(PendingZNode node, int rc, boolean childrenResult) {
+        final Code code = Code.get(rc);
+        if (code != Code.OK) {
+            if (childrenResult && code == Code.NONODE) {
+                // Node was removed after its data was read - it is still backed up, without any children
+                node.childrenDisappeared = true;
+            } else if (node.rc == Code.OK || node.rc == Code.NONODE) {
+                node.rc = code;
+            }
+        }
+        if (node.remaining.decrementAndGet() == 0) {
+            completed.add(node);
+        }
+    }
+
+    private final ACLCallback aclCallback = new ACLCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+            final PendingZNode node = (PendingZNode) ctx;
+            node.acls = acl;
+            if (stat != null) {
+                copyStat(stat, node.aclStat);
+            }
+            complete(node, rc, false);
+        }
+    };
+
+    private final DataCallback dataCallback = new DataCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            final PendingZNode node = (PendingZNode) ctx;
+            node.data = data;
+            if (stat != null) {
+                copyStat(stat, node.dataStat);
+            }
+            complete(node, rc, false);
+        }
+    };
+
+    private final ChildrenCallback childrenCallback = new ChildrenCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            final PendingZNode node = (PendingZNode) ctx;
+            node.childPaths = children;
+            complete(node, rc, true);
+        }
+    };
+
+    private static void copyStat(Stat from, Stat to) {
+        to.setAversion(from.getAversion());
+        to.setCtime(from.getCtime());
+        to.setCversion(from.getCversion());
+        to.setCzxid(from.getCzxid());
+        to.setDataLength(from.getDataLength());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setMtime(from.getMtime());
+        to.setMzxid(from.getMzxid());
+        to.setNumChildren(from.getNumChildren());
+        to.setPzxid(from.getPzxid());
+        to.setVersion(from.getVersion());
+    }
+
+    /**
+     * State of a znode which has been discovered but not yet written. Fields are populated by the ZooKeeper event
+     * thread and handed off to the backup thread through {@link #completed}.
+     */
+    private static class PendingZNode {
+        private final String path;
+        private final Stat aclStat = new Stat();
+        private final Stat dataStat = new Stat();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final List<PendingZNode> children = new ArrayList<PendingZNode>(0);
+        private volatile Code rc = Code.OK;
+        private List<ACL> acls;
+        private byte[] data;
+        private List<String> childPaths;
+        private boolean childrenDisappeared;
+        private int retries;
+        private boolean processed;
+        private boolean skip;
+
+        private PendingZNode(String path) {
+            this.path = path;
+        }
+    }
+}
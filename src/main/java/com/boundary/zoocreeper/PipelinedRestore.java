@@ -0,0 +1,272 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Restores znodes using the asynchronous ZooKeeper API.
+ * <p>
+ * A znode is created as soon as the creation of its parent has been acknowledged, with up to
+ * {@link RestoreOptions#maxInFlight} znodes either being created or waiting for their parent. Znodes which already
+ * exist are overwritten asynchronously in the same way as {@link Overwriter}, only writing ACLs and data which
+ * changed. The limit shrinks below --max-in-flight while an adaptive {@link Throttle} is backing off.
+ */
+class PipelinedRestore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedRestore.class);
+    private static final int NO_VERSION = -2;
+
+    private final RestoreOptions options;
+    private final ZooKeeper zk;
+    private final RestoreStats stats;
+    private final PathCache existingPaths;
+    private final Overwriter overwriter;
+    private final BlockingQueue<PendingCreate> completed = new LinkedBlockingQueue<PendingCreate>();
+    /**
+     * Znodes which haven't been acknowledged yet, by path.
+     */
+    private final Map<String, PendingCreate> pending = Maps.newHashMap();
+
+    PipelinedRestore(RestoreOptions options, ZooKeeper zk, RestoreStats stats, PathCache existingPaths) {
+        Preconditions.checkArgument(options.maxInFlight > 0, "maxInFlight must be positive");
+        this.options = options;
+        this.zk = zk;
+        this.stats = stats;
+        this.existingPaths = existingPaths;
+        this.overwriter = new Overwriter(zk, stats);
+    }
+
+    /**
+     * Restores a znode once its parent has been restored.
+     *
+     * @param zNode The znode to restore.
+     * @param previous The znode restored before this one (in the same backup), or null if this is the first znode.
+     */
+    void add(BackupZNode zNode, BackupZNode previous) throws KeeperException, InterruptedException {
+        while (pending.size() >= options.getThrottle().getInFlightLimit()) {
+            process(completed.take());
+        }
+        final String parentPath = ZooKeeperPaths.getParentPath(zNode.path);
+        final PendingCreate create = new PendingCreate(zNode);
+        final PendingCreate parent = pending.get(parentPath);
+        pending.put(zNode.path, create);
+        if (parent != null && !parent.childrenReleased) {
+            parent.children.add(create);
+        } else if (parent != null) {
+            // Parent already exists and is being overwritten
+            create(create);
+        } else {
+            if (previous == null || !previous.path.equals(parentPath)) {
+                // Parent isn't part of the backup
+                Restore.createPath(zk, existingPaths, parentPath);
+            }
+            create(create);
+        }
+        for (PendingCreate done = completed.poll(); done != null; done = completed.poll()) {
+            process(done);
+        }
+    }
+
+    /**
+     * Waits for all znodes to be restored.
+     */
+    void finish() throws KeeperException, InterruptedException {
+        while (!pending.isEmpty()) {
+            process(completed.take());
+        }
+    }
+
+    private void create(PendingCreate create) {
+        final BackupZNode zNode = create.zNode;
+        zk.create(zNode.path, zNode.data, zNode.acls, CreateMode.PERSISTENT, createCallback, create);
+    }
+
+    private void process(PendingCreate create) throws KeeperException, InterruptedException {
+        final BackupZNode zNode = create.zNode;
+        switch (create.stage) {
+            case CREATE:
+                if (create.rc == Code.OK || create.rc == Code.NODEEXISTS) {
+                    existingPaths.add(zNode.path);
+                }
+                if (create.rc == Code.OK) {
+                    LOGGER.info("Created node: {}", zNode.path);
+                    stats.created++;
+                } else if (create.rc == Code.NODEEXISTS) {
+                    if (options.overwriteExisting) {
+                        create.stage = Stage.READ;
+                        create.current = new Overwriter.CurrentZNode();
+                        create.remaining.set(2);
+                        zk.getACL(zNode.path, null, aclCallback, create);
+                        zk.getData(zNode.path, false, dataCallback, create);
+                        return;
+                    }
+                    LOGGER.warn("Node already exists: {}", zNode.path);
+                    stats.existing++;
+                } else {
+                    throw KeeperException.create(create.rc, zNode.path);
+                }
+                break;
+            case READ:
+                final Overwriter.CurrentZNode current = create.current;
+                create.current = null;
+                if (current.rc == Code.NONODE) {
+                    overwriter.conflict(zNode);
+                    break;
+                } else if (current.rc != Code.OK) {
+                    throw KeeperException.create(current.rc, zNode.path);
+                }
+                final boolean aclsChanged = Overwriter.aclsChanged(zNode, current.acls);
+                final boolean dataChanged = Overwriter.dataChanged(zNode, current.data);
+                if (!aclsChanged) {
+                    // Children can be created while the data is overwritten, but the ACLs may be what allows
+                    // creating them
+                    createChildren(create);
+                }
+                if (!aclsChanged && !dataChanged) {
+                    overwriter.unchanged(zNode);
+                    break;
+                }
+                if (dataChanged) {
+                    create.dataVersion = current.dataStat.getVersion();
+                }
+                if (aclsChanged) {
+                    // The server checks a pipelined setData against the ACLs from before the setACL
+                    create.stage = Stage.WRITE_ACL;
+                    zk.setACL(zNode.path, zNode.acls, current.aclStat.getAversion(), writeCallback, create);
+                } else {
+                    create.stage = Stage.WRITE_DATA;
+                    zk.setData(zNode.path, zNode.data, create.dataVersion, writeCallback, create);
+                }
+                return;
+            case WRITE_ACL:
+            case WRITE_DATA:
+                if (create.rc == Code.BADVERSION || create.rc == Code.NONODE) {
+                    overwriter.conflict(zNode);
+                    break;
+                } else if (create.rc != Code.OK) {
+                    throw KeeperException.create(create.rc, zNode.path);
+                }
+                if (create.stage == Stage.WRITE_ACL && create.dataVersion != NO_VERSION) {
+                    createChildren(create);
+                    create.stage = Stage.WRITE_DATA;
+                    zk.setData(zNode.path, zNode.data, create.dataVersion, writeCallback, create);
+                    return;
+                }
+                overwriter.updated(zNode);
+                break;
+        }
+        pending.remove(zNode.path);
+        createChildren(create);
+    }
+
+    private void createChildren(PendingCreate create) {
+        for (PendingCreate child : create.children) {
+            create(child);
+        }
+        create.children.clear();
+        create.childrenReleased = true;
+    }
+
+    private final StringCallback createCallback = new StringCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            final PendingCreate create = (PendingCreate) ctx;
+            create.rc = Code.get(rc);
+            completed.add(create);
+        }
+    };
+
+    private final ACLCallback aclCallback = new ACLCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+            final PendingCreate create = (PendingCreate) ctx;
+            create.current.acls = acl;
+            create.current.aclStat = stat;
+            create.current.complete(rc);
+            if (create.remaining.decrementAndGet() == 0) {
+                completed.add(create);
+            }
+        }
+    };
+
+    private final DataCallback dataCallback = new DataCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            final PendingCreate create = (PendingCreate) ctx;
+            create.current.data = data;
+            create.current.dataStat = stat;
+            create.current.complete(rc);
+            if (create.remaining.decrementAndGet() == 0) {
+                completed.add(create);
+            }
+        }
+    };
+
+    private final StatCallback writeCallback = new StatCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            final PendingCreate create = (PendingCreate) ctx;
+            create.rc = Code.get(rc);
+            completed.add(create);
+        }
+    };
+
+    private enum Stage {
+        /** Creating the znode. */
+        CREATE,
+        /** Reading the current state of an existing znode. */
+        READ,
+        /** Overwriting the ACLs of an existing znode. */
+        WRITE_ACL,
+        /** Overwriting the data of an existing znode. */
+        WRITE_DATA
+    }
+
+    private static class PendingCreate {
+        private final BackupZNode zNode;
+        private final List<PendingCreate> children = Lists.newArrayListWithCapacity(0);
+        private final AtomicInteger remaining = new AtomicInteger();
+        private Stage stage = Stage.CREATE;
+        private boolean childrenReleased = false;
+        private int dataVersion = NO_VERSION;
+        private volatile Code rc;
+        private Overwriter.CurrentZNode current;
+
+        private PendingCreate(BackupZNode zNode) {
+            this.zNode = zNode;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.apache.zookeeper.KeeperException;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Command-line utility used to print the shape of a tree of znodes (see {@link TreeProfile}), either in ZooKeeper or
+ * in a backup, along with the options which --auto-tune would choose for it.
+ */
+public class Profile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Profile.class);
+
+    private final CommonOptions options;
+    private final int depth;
+
+    public Profile(ProfileOptions options) {
+        this.options = options;
+        this.depth = options.depth;
+    }
+
+    /**
+     * Profiles ZooKeeper.
+     */
+    TreeProfile profile() throws IOException, InterruptedException, KeeperException {
+        return TreeProfile.read(options, depth);
+    }
+
+    /**
+     * Profiles a backup file.
+     */
+    TreeProfile profile(String file) throws IOException {
+        return TreeProfile.read(options.openBackup(LOGGER, file), options, depth);
+    }
+
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(Profile.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, KeeperException {
+        ProfileOptions options = new ProfileOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+            if ((options.zkConnect == null) == (options.inputFile == null)) {
+                throw CommonOptions.usageError(parser, "Either -z or -f must be specified");
+            }
+            if (options.depth < 0) {
+                throw CommonOptions.usageError(parser, "--depth can't be negative");
+            }
+            if (options.inputFile != null) {
+                options.rejectZooKeeperOptions(parser, "profile -f");
+            }
+            options.rejectRunOptions(parser, "profile");
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(Profile.class.getPackage().getName());
+        }
+        final Profile profile = new Profile(options);
+        final TreeProfile treeProfile = (options.inputFile != null) ? profile.profile(options.inputFile)
+                : profile.profile();
+        treeProfile.print(System.out);
+    }
+}
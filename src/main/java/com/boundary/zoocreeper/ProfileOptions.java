@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.kohsuke.args4j.Option;
+
+/**
+ * Options to the {@link Profile} command, which profiles either ZooKeeper (-z) or a backup file (-f). The common
+ * options to tune, checkpoint or report on a run are rejected, as are the options to connect to ZooKeeper with -f.
+ */
+class ProfileOptions extends CommonOptions {
+
+    @Option(name = "-f", aliases = { "--file" }, usage = "Backup file to profile instead of ZooKeeper",
+            required = false, metaVar = "<filename>")
+    String inputFile = null;
+
+    @Option(name = "--depth", usage = "Depth below the root path down to which subtrees are profiled (default: 2)",
+            required = false, metaVar = "<depth>")
+    int depth = 2;
+}
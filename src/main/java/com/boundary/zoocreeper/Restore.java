@@ -15,32 +15,18 @@
  */
 package com.boundary.zoocreeper;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import com.google.common.io.Closeables;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.data.ACL;
-import org.apache.zookeeper.data.Id;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Command-line utility used to restore a ZK backup.
@@ -48,10 +34,10 @@ import java.util.zip.GZIPInputStream;
 public class Restore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Restore.class);
-    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     private final RestoreOptions options;
-    private final List<BackupZNode> path = Lists.newArrayList();
+    private final RestoreStats stats = new RestoreStats();
+    private final PathCache existingPaths = new PathCache();
 
     public Restore(RestoreOptions options) {
         this.options = Preconditions.checkNotNull(options);
@@ -60,51 +46,44 @@ public class Restore {
     /**
      * Restores ZooKeeper state from the specified backup stream.
      *
-     * @param inputStream Input stream containing a JSON encoded ZooKeeper backup.
+     * @param inputStream Input stream containing a ZooKeeper backup (in {@link RestoreOptions#format}).
      * @throws InterruptedException If this method is interrupted.
      * @throws IOException If an error occurs reading from the backup stream.
      */
     public void restore(InputStream inputStream) throws InterruptedException, IOException, KeeperException {
+        restore(options.format.createReader(inputStream, false));
+    }
+
+    /**
+     * Restores ZooKeeper state from the specified backup, closing the reader.
+     */
+    void restore(BackupReader reader) throws InterruptedException, IOException, KeeperException {
         ZooKeeper zk = null;
-        JsonParser jp = null;
         try {
-            jp = JSON_FACTORY.createParser(inputStream);
             zk = options.createZooKeeper(LOGGER);
-            doRestore(jp, zk);
+            doRestore(options.metrics.meter(reader), zk);
         } finally {
             if (zk != null) {
                 zk.close();
             }
-            if (jp != null) {
-                jp.close();
-            }
-        }
-    }
-
-    private static void expectNextToken(JsonParser jp, JsonToken expected) throws IOException {
-        if (jp.nextToken() != expected) {
-            throw new IOException(String.format("Expected: %s, Found: %s", expected, jp.getCurrentToken()));
-        }
-    }
-
-    private static void expectCurrentToken(JsonParser jp, JsonToken expected) throws IOException {
-        final JsonToken currentToken = jp.getCurrentToken();
-        if (currentToken != expected) {
-            throw new IOException(String.format("Expected: %s, Found: %s", expected, currentToken));
+            reader.close();
         }
     }
 
-    private static String getParentPath(String path) {
-        final int lastSlash = path.lastIndexOf('/');
-        return (lastSlash > 0) ? path.substring(0, lastSlash) : "/";
+    RestoreStats getStats() {
+        return stats;
     }
 
-    private static void createPath(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
-        if ("/".equals(path)) {
+    /**
+     * Creates any missing znodes in the path, skipping the ones already known to exist.
+     */
+    static void createPath(ZooKeeper zk, PathCache existingPaths, String path)
+            throws KeeperException, InterruptedException {
+        if ("/".equals(path) || existingPaths.contains(path)) {
             return;
         }
         if (zk.exists(path, false) == null) {
-            createPath(zk, getParentPath(path));
+            createPath(zk, existingPaths, ZooKeeperPaths.getParentPath(path));
             LOGGER.info("Creating path: {}", path);
             try {
                 zk.create(path, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
@@ -112,149 +91,85 @@ public class Restore {
                 // Race condition
             }
         }
+        existingPaths.add(path);
     }
 
     private void restoreNode(ZooKeeper zk, BackupZNode zNode) throws KeeperException, InterruptedException {
-        createPath(zk, getParentPath(zNode.path));
+        createPath(zk, existingPaths, ZooKeeperPaths.getParentPath(zNode.path));
         try {
             zk.create(zNode.path, zNode.data, zNode.acls, CreateMode.PERSISTENT);
             LOGGER.info("Created node: {}", zNode.path);
+            stats.created++;
         } catch (NodeExistsException e) {
-            if (options.overwriteExisting) {
-                // TODO: Compare with current data / acls
-                zk.setACL(zNode.path, zNode.acls, -1);
-                zk.setData(zNode.path, zNode.data, -1);
-            } else {
-                LOGGER.warn("Node already exists: {}", zNode.path);
-            }
+            nodeExists(zk, zNode);
         }
+        existingPaths.add(zNode.path);
     }
 
-    private void doRestore(JsonParser jp, ZooKeeper zk) throws IOException, KeeperException, InterruptedException {
-        expectNextToken(jp, JsonToken.START_OBJECT);
-        final Set<String> createdPaths = Sets.newHashSet();
-        while (jp.nextToken() != JsonToken.END_OBJECT) {
-            final BackupZNode zNode = readZNode(jp, jp.getCurrentName());
-            // We are the root
-            if (path.isEmpty()) {
-                path.add(zNode);
-            } else {
-                for (ListIterator<BackupZNode> it = path.listIterator(path.size()); it.hasPrevious(); ) {
-                    final BackupZNode parent = it.previous();
-                    if (zNode.path.startsWith(parent.path)) {
-                        break;
-                    }
-                    it.remove();
-                }
-                path.add(zNode);
-            }
-            if (zNode.ephemeralOwner != 0) {
-                LOGGER.info("Skipping ephemeral ZNode: {}", zNode.path);
-                continue;
-            }
-            if (!zNode.path.startsWith(options.rootPath)) {
-                LOGGER.info("Skipping ZNode (not under root path '{}'): {}", options.rootPath, zNode.path);
-                continue;
-            }
-            if (options.isPathExcluded(LOGGER, zNode.path) || !options.isPathIncluded(LOGGER, zNode.path)) {
-                continue;
-            }
-            for (BackupZNode pathComponent : path) {
-                if (createdPaths.add(pathComponent.path)) {
-                    restoreNode(zk, pathComponent);
-                }
-            }
-        }
-    }
-
-    private static class BackupZNode {
-        private final String path;
-        private final long ephemeralOwner;
-        private final byte[] data;
-        private final List<ACL> acls;
-
-        public BackupZNode(String path, long ephemeralOwner, byte[] data, List<ACL> acls) {
-            this.path = path;
-            this.ephemeralOwner = ephemeralOwner;
-            this.data = data;
-            this.acls = acls;
+    /**
+     * Handles a znode from the backup which already exists in ZooKeeper.
+     */
+    void nodeExists(ZooKeeper zk, BackupZNode zNode) throws KeeperException, InterruptedException {
+        if (options.overwriteExisting) {
+            new Overwriter(zk, stats).overwrite(zNode);
+        } else {
+            LOGGER.warn("Node already exists: {}", zNode.path);
+            stats.existing++;
         }
     }
 
-    private static final ImmutableList<String> REQUIRED_ZNODE_FIELDS = ImmutableList.of(Backup.FIELD_EPHEMERAL_OWNER,
-            Backup.FIELD_DATA, Backup.FIELD_ACLS);
-
-    private static BackupZNode readZNode(JsonParser jp, String path) throws IOException {
-        expectNextToken(jp, JsonToken.START_OBJECT);
-        long ephemeralOwner = 0;
-        byte[] data = null;
-        final List<ACL> acls = Lists.newArrayList();
-        final Set<String> seenFields = Sets.newHashSet();
-        while (jp.nextToken() != JsonToken.END_OBJECT) {
-            jp.nextValue();
-            final String fieldName = jp.getCurrentName();
-            seenFields.add(fieldName);
-            if (Backup.FIELD_EPHEMERAL_OWNER.equals(fieldName)) {
-                ephemeralOwner = jp.getLongValue();
-            } else if (Backup.FIELD_DATA.equals(fieldName)) {
-                if (jp.getCurrentToken() == JsonToken.VALUE_NULL) {
-                    data = null;
+    /**
+     * Restores the znodes read from a backup using the specified connection. When resuming, the znodes up to the
+     * --resume point are only used to track the path of the next znode to restore.
+     */
+    void doRestore(BackupReader reader, ZooKeeper zk)
+            throws IOException, KeeperException, InterruptedException {
+        final BatchedRestore batch = (options.batchSize > 1)
+                ? new BatchedRestore(options, zk, stats, existingPaths) : null;
+        final PipelinedRestore pipeline = options.async
+                ? new PipelinedRestore(options, zk, stats, existingPaths) : null;
+        final Checkpointer checkpointer = (options.checkpointIntervalSecs > 0 || options.resume)
+                ? new Checkpointer(options.getCheckpointFile(options.inputFile, ".restore-checkpoint"),
+                        options.checkpointIntervalSecs) : null;
+        final RestoreTraversal traversal = new RestoreTraversal(options, reader);
+        while (true) {
+            if (checkpointer != null && traversal.getLastPath() != null && checkpointer.isDue()) {
+                // Every znode up to the last one read must be in ZooKeeper before it can be checkpointed
+                if (batch != null) {
+                    batch.flush();
                 }
-                else {
-                    data = jp.getBinaryValue();
+                if (pipeline != null) {
+                    pipeline.finish();
                 }
-            } else if (Backup.FIELD_ACLS.equals(fieldName)) {
-                readACLs(jp, acls);
-            } else {
-                LOGGER.debug("Ignored field: {}", fieldName);
+                checkpointer.save(new Checkpoint(options.inputFile, options.format, options.compression().getCodec(),
+                        options.rootPath, traversal.getLastPath(), traversal.getZnodes(), -1, 0));
             }
-        }
-        if (!seenFields.containsAll(REQUIRED_ZNODE_FIELDS)) {
-            throw new IOException("Missing required fields: " + REQUIRED_ZNODE_FIELDS);
-        }
-        return new BackupZNode(path, ephemeralOwner, data, acls);
-    }
-
-    private static void readACLs(JsonParser jp, List<ACL> acls) throws IOException {
-        expectCurrentToken(jp, JsonToken.START_ARRAY);
-        while (jp.nextToken() != JsonToken.END_ARRAY) {
-            acls.add(readACL(jp));
-        }
-    }
-
-    private static final ImmutableList<String> REQUIRED_ACL_FIELDS = ImmutableList.of(Backup.FIELD_ACL_SCHEME,
-            Backup.FIELD_ACL_ID, Backup.FIELD_ACL_PERMS);
-
-    private static ACL readACL(JsonParser jp) throws IOException {
-        expectCurrentToken(jp, JsonToken.START_OBJECT);
-        String scheme = null;
-        String id = null;
-        int perms = -1;
-        final Set<String> seenFields = Sets.newHashSet();
-        while (jp.nextToken() != JsonToken.END_OBJECT) {
-            jp.nextValue();
-            final String fieldName = jp.getCurrentName();
-            seenFields.add(fieldName);
-            if (Backup.FIELD_ACL_SCHEME.equals(fieldName)) {
-                scheme = jp.getValueAsString();
-            } else if (Backup.FIELD_ACL_ID.equals(fieldName)) {
-                id = jp.getValueAsString();
-            } else if (Backup.FIELD_ACL_PERMS.equals(fieldName)) {
-                perms = jp.getIntValue();
-            } else {
-                throw new IOException("Unexpected field: " + fieldName);
+            if (!traversal.next()) {
+                break;
+            }
+            final List<BackupZNode> path = traversal.getPath();
+            existingPaths.retainPath(path.get(path.size() - 1).path);
+            for (int i = traversal.getRestoredDepth(); i < path.size(); i++) {
+                final BackupZNode pathComponent = path.get(i);
+                if (batch != null) {
+                    batch.add(pathComponent);
+                } else if (pipeline != null) {
+                    pipeline.add(pathComponent, (i > 0) ? path.get(i - 1) : null);
+                } else {
+                    restoreNode(zk, pathComponent);
+                }
             }
         }
-        if (!seenFields.containsAll(REQUIRED_ACL_FIELDS)) {
-            throw new IOException("Missing required ACL fields: " + REQUIRED_ACL_FIELDS);
+        if (batch != null) {
+            batch.flush();
         }
-        final Id zkId;
-        if (Ids.ANYONE_ID_UNSAFE.getScheme().equals(scheme) && Ids.ANYONE_ID_UNSAFE.getId().equals(id)) {
-            zkId = Ids.ANYONE_ID_UNSAFE;
-        } else {
-            zkId = new Id(scheme, id);
+        if (pipeline != null) {
+            pipeline.finish();
+        }
+        if (checkpointer != null) {
+            checkpointer.delete();
         }
-        return new ACL(perms, zkId);
+        stats.log(LOGGER);
     }
 
     private static void usage(CmdLineParser parser, int exitCode) {
@@ -271,6 +186,18 @@ public class Restore {
             if (options.help) {
                 usage(parser, 0);
             }
+            options.requireZkConnect(parser);
+            if (options.async && options.batchSize > 1) {
+                throw CommonOptions.usageError(parser, "--async can't be combined with --batch-size");
+            }
+            if ((options.checkpointIntervalSecs > 0 || options.resume) && "-".equals(options.inputFile)
+                    && options.checkpointFile == null) {
+                throw CommonOptions.usageError(parser,
+                        "--checkpoint-file is required to checkpoint a restore from stdin");
+            }
+            if (options.autoTune && "-".equals(options.inputFile)) {
+                throw CommonOptions.usageError(parser, "--auto-tune requires an input file (it is read twice)");
+            }
         } catch (CmdLineException e) {
             if (!options.help) {
                 System.err.println(e.getLocalizedMessage());
@@ -280,21 +207,30 @@ public class Restore {
         if (options.verbose) {
             LoggingUtils.enableDebugLogging(Restore.class.getPackage().getName());
         }
-        InputStream is = null;
+        if (options.resume) {
+            final Checkpoint checkpoint = Checkpoint.read(
+                    options.getCheckpointFile(options.inputFile, ".restore-checkpoint"));
+            checkpoint.validate(options.inputFile, options.format, options.compression().getCodec(),
+                    options.rootPath);
+            options.resumeAfter = checkpoint.path;
+            LOGGER.info("Resuming restore after: {} ({} znodes read)", checkpoint.path, checkpoint.znodes);
+        }
+        if (options.autoTune) {
+            TreeProfile.read(options.format.open(options.inputFile, options.compression(), false), options, 1)
+                    .tune(options);
+        }
+        Restore restore = new Restore(options);
+        options.metrics.registerMBeans("Restore");
         try {
-            if ("-".equals(options.inputFile)) {
-                LOGGER.info("Restoring from stdin");
-                is = new BufferedInputStream(System.in);
-            } else {
-                is = new BufferedInputStream(new FileInputStream(options.inputFile));
-            }
-            if (options.compress) {
-                is = new GZIPInputStream(is);
-            }
-            Restore restore = new Restore(options);
-            restore.restore(is);
+            restore(options, restore);
         } finally {
-            Closeables.close(is, true);
+            options.writeStats(LOGGER, restore.getStats());
+            options.metrics.unregisterMBeans();
         }
     }
+
+    private static void restore(RestoreOptions options, Restore restore)
+            throws IOException, InterruptedException, KeeperException {
+        restore.restore(options.openBackup(LOGGER, options.inputFile));
+    }
 }
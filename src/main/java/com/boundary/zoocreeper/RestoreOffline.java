@@ -0,0 +1,221 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.Util;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Command-line utility used to write a backup as a ZooKeeper snapshot, which a new server loads from its dataDir at
+ * startup instead of having every znode restored through the ensemble.
+ * <p>
+ * The znodes are created in a {@link DataTree} in backup order, each with the next zxid (starting at 1), so the
+ * snapshot is as of the zxid of the last znode. The tree interns the ACL lists as it would for a running server.
+ * The backup is filtered the same way as by {@link Restore}, and the data and ACLs of the znodes every tree starts
+ * with ('/' and '/zookeeper') are overwritten from the backup.
+ */
+public class RestoreOffline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestoreOffline.class);
+
+    private final RestoreOfflineOptions options;
+    private final RestoreStats stats = new RestoreStats();
+    private final DataTree dataTree = new DataTree();
+    // Creation and modification time of every znode
+    private final long time = System.currentTimeMillis();
+    private long zxid = 0;
+
+    public RestoreOffline(RestoreOfflineOptions options) {
+        this.options = Preconditions.checkNotNull(options);
+    }
+
+    RestoreStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Adds the znodes read from a backup to the tree.
+     */
+    void restore(BackupReader reader) throws IOException {
+        final RestoreTraversal traversal = new RestoreTraversal(options, reader);
+        while (traversal.next()) {
+            final List<BackupZNode> path = traversal.getPath();
+            for (int i = traversal.getRestoredDepth(); i < path.size(); i++) {
+                restoreNode(path.get(i));
+            }
+        }
+        dataTree.lastProcessedZxid = zxid;
+        stats.log(LOGGER);
+    }
+
+    private void restoreNode(BackupZNode zNode) {
+        final DataNode node = dataTree.getNode(zNode.path);
+        if (node != null) {
+            overwrite(zNode, node);
+            return;
+        }
+        createPath(ZooKeeperPaths.getParentPath(zNode.path));
+        createNode(zNode.path, zNode.data, zNode.acls);
+        keepCversion(zNode, dataTree.getNode(zNode.path));
+        LOGGER.debug("Created node: {}", zNode.path);
+        stats.created++;
+    }
+
+    /**
+     * Creates any missing znodes in the path (the backup may not contain the ancestors of a znode if it was
+     * filtered).
+     */
+    private void createPath(String path) {
+        if (dataTree.getNode(path) != null) {
+            return;
+        }
+        createPath(ZooKeeperPaths.getParentPath(path));
+        LOGGER.info("Creating path: {}", path);
+        createNode(path, null, Ids.OPEN_ACL_UNSAFE);
+    }
+
+    private void createNode(String path, byte[] data, List<ACL> acls) {
+        try {
+            // A parent cversion of -1 increments the cversion of the parent
+            dataTree.createNode(path, data, acls, 0, -1, ++zxid, time);
+        } catch (NoNodeException e) {
+            throw new IllegalStateException("Parent node not created: " + path, e);
+        } catch (NodeExistsException e) {
+            throw new IllegalStateException("Node already created: " + path, e);
+        }
+    }
+
+    /**
+     * Overwrites a znode which every tree starts with.
+     */
+    private void overwrite(BackupZNode zNode, DataNode node) {
+        final Stat stat = new Stat();
+        boolean updated = false;
+        try {
+            if (Overwriter.dataChanged(zNode, dataTree.getData(zNode.path, stat, null))) {
+                dataTree.setData(zNode.path, zNode.data, stat.getVersion() + 1, ++zxid, time);
+                updated = true;
+            }
+            if (Overwriter.aclsChanged(zNode, dataTree.getACL(zNode.path, stat))) {
+                dataTree.setACL(zNode.path, zNode.acls, stat.getAversion() + 1);
+                updated = true;
+            }
+        } catch (NoNodeException e) {
+            throw new IllegalStateException("Node disappeared: " + zNode.path, e);
+        }
+        keepCversion(zNode, node);
+        if (updated) {
+            LOGGER.info("Updated node: {}", zNode.path);
+            stats.updated++;
+        } else {
+            stats.unchanged++;
+        }
+    }
+
+    /**
+     * Raises the cversion of a znode to at least the one in the backup (the children created after it raise it
+     * further). Sequential znodes are numbered by the cversion of their parent, so it mustn't go backwards.
+     */
+    private static void keepCversion(BackupZNode zNode, DataNode node) {
+        node.stat.setCversion(Math.max(node.stat.getCversion(), zNode.stat.getCversion()));
+    }
+
+    /**
+     * Creates the version-2 subdirectory of a dataDir, which mustn't contain any snapshots or transaction logs (they
+     * would be loaded along with the snapshot).
+     */
+    static File createSnapDir(File dataDir) throws IOException {
+        final File snapDir = new File(dataDir, OfflineBackup.VERSION_DIR);
+        final String[] existing = snapDir.list();
+        if (existing != null && existing.length > 0) {
+            throw new IOException("ZooKeeper data already exists in: " + snapDir);
+        }
+        if (!snapDir.isDirectory() && !snapDir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + snapDir);
+        }
+        return snapDir;
+    }
+
+    /**
+     * Writes the tree as a snapshot in a directory created by {@link #createSnapDir(File)}.
+     *
+     * @return The snapshot file.
+     */
+    File write(File snapDir) throws IOException {
+        // Written beside the version-2 directory and renamed, so a server never loads a partial snapshot
+        final File tmpFile = new File(snapDir.getParentFile(), ".snapshot.tmp");
+        final File snapshot = new File(snapDir, Util.makeSnapshotName(dataTree.lastProcessedZxid));
+        new FileSnap(snapDir).serialize(dataTree, new HashMap<Long, Integer>(), tmpFile);
+        if (!tmpFile.renameTo(snapshot)) {
+            throw new IOException("Failed to rename " + tmpFile + " to " + snapshot);
+        }
+        LOGGER.info("Wrote {} znodes as of zxid 0x{} to: {}", new Object[] { dataTree.getNodeCount(),
+                Long.toHexString(dataTree.lastProcessedZxid), snapshot });
+        return snapshot;
+    }
+
+    private static void usage(CmdLineParser parser, int exitCode) {
+        System.err.println(RestoreOffline.class.getName() + " [options...] arguments...");
+        parser.printUsage(System.err);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws IOException {
+        RestoreOfflineOptions options = new RestoreOfflineOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+            if (options.help) {
+                usage(parser, 0);
+            }
+            options.rejectZooKeeperOptions(parser, "restore-offline");
+            options.rejectRunOptions(parser, "restore-offline");
+        } catch (CmdLineException e) {
+            if (!options.help) {
+                System.err.println(e.getLocalizedMessage());
+            }
+            usage(parser, options.help ? 0 : 1);
+        }
+        if (options.verbose) {
+            LoggingUtils.enableDebugLogging(RestoreOffline.class.getPackage().getName());
+        }
+        final File snapDir = createSnapDir(new File(options.dataDir));
+        final RestoreOffline restore = new RestoreOffline(options);
+        final BackupReader reader = options.openBackup(LOGGER, options.inputFile);
+        try {
+            restore.restore(reader);
+        } finally {
+            reader.close();
+        }
+        restore.write(snapDir);
+    }
+}
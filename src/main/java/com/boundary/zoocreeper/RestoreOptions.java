@@ -29,4 +29,12 @@ public class RestoreOptions extends CommonOptions {
     @Option(name = "--overwrite-existing", usage = "Overwrite existing znodes", required = false)
     boolean overwriteExisting = false;
 
+    @Option(name = "--batch-size", usage = "Maximum number of znodes restored in a single multi() transaction",
+            required = false, metaVar = "<num_znodes>")
+    int batchSize = 1;
+
+    @Option(name = "--max-batch-bytes", usage = "Maximum estimated size of a multi() transaction (must be less than "
+            + "the server's jute.maxbuffer)", required = false, metaVar = "<num_bytes>")
+    int maxBatchBytes = 512 * 1024;
+
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.slf4j.Logger;
+
+/**
+ * Counts of what a {@link Restore} did to each znode in the backup.
+ */
+class RestoreStats {
+    long created = 0;
+    long updated = 0;
+    long unchanged = 0;
+    long existing = 0;
+    long conflicts = 0;
+
+    void log(Logger logger) {
+        logger.info("Restored znodes: {} created, {} updated, {} unchanged, {} existing (not overwritten), "
+                + "{} changed concurrently (not overwritten)", new Object[] { created, updated, unchanged, existing,
+                conflicts });
+    }
+}
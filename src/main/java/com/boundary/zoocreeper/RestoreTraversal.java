@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Depth-first walk of a backup being restored, which skips the znodes a restore leaves out (ephemeral znodes, znodes
+ * outside the --root-path, filtered znodes and, when resuming, znodes restored by the run being resumed).
+ * <p>
+ * Each znode to restore is returned along with its path from the root of the backup, in which the ancestors which
+ * haven't been restored yet (because they were filtered out themselves) follow the {@link #getRestoredDepth()}.
+ */
+class RestoreTraversal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestoreTraversal.class);
+
+    private final CommonOptions options;
+    private final BackupReader reader;
+    // Znodes from the root of the backup down to the last one read
+    private final List<BackupZNode> path = Lists.newArrayList();
+    // Number of znodes at the start of the path which have been restored (as of the last call to next())
+    private int restoredDepth = 0;
+    private int nextRestoredDepth = 0;
+    // Root of a subtree where no znode will be restored
+    private String skippedPath = null;
+    // Last znode read from the backup, and the number read
+    private String lastPath = null;
+    private long znodes = 0;
+
+    RestoreTraversal(CommonOptions options, BackupReader reader) {
+        this.options = options;
+        this.reader = reader;
+    }
+
+    /**
+     * Reads up to the next znode to restore, which is the last znode of the {@link #getPath()}. The znodes in the
+     * path from the {@link #getRestoredDepth()} onwards are treated as restored by the next call.
+     *
+     * @return False if the end of the backup was reached.
+     */
+    boolean next() throws IOException {
+        for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+            lastPath = zNode.path;
+            znodes++;
+            if (skippedPath != null) {
+                if (ZooKeeperPaths.isDescendant(zNode.path, skippedPath)) {
+                    continue;
+                }
+                skippedPath = null;
+            }
+            // The backup is in depth-first order, so znodes which aren't ancestors of this one won't be seen again
+            while (!path.isEmpty() && !ZooKeeperPaths.isDescendant(zNode.path, path.get(path.size() - 1).path)) {
+                path.remove(path.size() - 1);
+            }
+            nextRestoredDepth = Math.min(nextRestoredDepth, path.size());
+            path.add(zNode);
+            if (options.isResumed(zNode.path)) {
+                // Restored by the run being resumed (its ancestors are restored again before the next znode)
+                continue;
+            }
+            if (zNode.stat.getEphemeralOwner() != 0) {
+                LOGGER.info("Skipping ephemeral ZNode: {}", zNode.path);
+                continue;
+            }
+            if (!isUnderRootPath(zNode.path)) {
+                LOGGER.info("Skipping ZNode (not under root path '{}'): {}", options.rootPath, zNode.path);
+                if (!ZooKeeperPaths.isDescendant(options.rootPath, zNode.path)) {
+                    skippedPath = zNode.path;
+                }
+                continue;
+            }
+            if (options.isPathExcluded(LOGGER, zNode.path) || !options.isPathIncluded(LOGGER, zNode.path)) {
+                if (options.getPathFilter().rejectsDescendants(zNode.path)) {
+                    LOGGER.debug("Skipping subtree: {}", zNode.path);
+                    skippedPath = zNode.path;
+                }
+                continue;
+            }
+            restoredDepth = nextRestoredDepth;
+            nextRestoredDepth = path.size();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a path is the --root-path or one of its descendants (as read by {@link IndexedBackupReader}, so
+     * "/a/bc" isn't under "/a/b").
+     */
+    private boolean isUnderRootPath(String path) {
+        return path.equals(options.rootPath) || ZooKeeperPaths.isDescendant(path, options.rootPath);
+    }
+
+    /**
+     * Returns the znodes from the root of the backup down to the znode to restore.
+     */
+    List<BackupZNode> getPath() {
+        return Collections.unmodifiableList(path);
+    }
+
+    /**
+     * Returns the number of znodes at the start of the path which have already been restored.
+     */
+    int getRestoredDepth() {
+        return restoredDepth;
+    }
+
+    /**
+     * Returns the path of the last znode read from the backup (which may have been skipped).
+     */
+    String getLastPath() {
+        return lastPath;
+    }
+
+    /**
+     * Returns the number of znodes read from the backup.
+     */
+    long getZnodes() {
+        return znodes;
+    }
+}
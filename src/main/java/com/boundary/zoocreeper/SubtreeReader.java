@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Reads the znodes of a backup which a backup of the --root-path with the same --include / --exclude options would
+ * contain: the root path and its descendants, leaving out ephemeral znodes and the subtrees of filtered znodes.
+ */
+class SubtreeReader implements BackupReader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubtreeReader.class);
+
+    private final BackupReader reader;
+    private final CommonOptions options;
+    // Root of a subtree of the backup which is left out
+    private String skippedPath = null;
+
+    SubtreeReader(BackupReader reader, CommonOptions options) {
+        this.reader = reader;
+        this.options = options;
+    }
+
+    @Override
+    public BackupZNode next() throws IOException {
+        for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+            if (skippedPath != null) {
+                if (ZooKeeperPaths.isDescendant(zNode.path, skippedPath)) {
+                    continue;
+                }
+                skippedPath = null;
+            }
+            if (zNode.path.equals(options.rootPath)) {
+                return zNode;
+            }
+            if (!ZooKeeperPaths.isDescendant(zNode.path, options.rootPath)) {
+                continue;
+            }
+            if (options.isPathExcluded(LOGGER, zNode.path) || !options.isPathIncluded(LOGGER, zNode.path)) {
+                // Backups don't read the children of znodes which are filtered out
+                skippedPath = zNode.path;
+                continue;
+            }
+            if (zNode.stat.getEphemeralOwner() != 0) {
+                LOGGER.debug("Skipping ephemeral ZNode: {}", zNode.path);
+                continue;
+            }
+            return zNode;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of ZooKeeper requests (and the number of znodes in flight with --async) shared by all the sessions
+ * of a backup or restore, so it doesn't degrade the latency seen by other clients of the ensemble.
+ * <p>
+ * With a fixed ceiling, requests are simply paced to --max-ops-per-sec. In adaptive mode the rate starts low and is
+ * adjusted after each window of requests like TCP congestion control: it doubles while latency is healthy (slow
+ * start), then grows by 5% per window and is cut by 30% whenever the mean latency of a window exceeds the target. The
+ * target is --target-latency, or by default twice the lowest mean latency seen so far (plus 1 ms for jitter), so the
+ * tool backs off as soon as requests start queueing on the servers. The in-flight window follows the rate, sized by
+ * Little's law to twice the number of requests needed to sustain it at the observed latency.
+ */
+class Throttle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Throttle.class);
+
+    static final double MIN_RATE = 10;
+    static final double INITIAL_RATE = 100;
+    // Used as the ceiling of the adaptive mode when no fixed ceiling is specified
+    private static final double MAX_ADAPTIVE_RATE = 1000000;
+    private static final double INCREASE = 1.05;
+    private static final double DECREASE = 0.7;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_REQUESTS = 10;
+    private static final long JITTER_MICROS = 1000;
+
+    private final RateLimiter limiter;
+    private final boolean adaptive;
+    private final double maxRate;
+    private final long targetLatencyMicros;
+    private final int maxInFlight;
+
+    private volatile int inFlightLimit;
+    // Guarded by this
+    private boolean slowStart = true;
+    private long baselineMicros = Long.MAX_VALUE;
+    private long windowStart = System.nanoTime();
+    private long windowRequests = 0;
+    private long windowMicros = 0;
+
+    /**
+     * @param maxOpsPerSec Ceiling on the number of requests per second (or 0 for no ceiling).
+     * @param adaptive True to adjust the rate and in-flight window based on the observed latency.
+     * @param targetLatencyMs Mean latency above which the adaptive mode backs off (or 0 to derive it from the lowest
+     *                        latency observed).
+     * @param maxInFlight Upper bound of the in-flight window.
+     */
+    Throttle(double maxOpsPerSec, boolean adaptive, long targetLatencyMs, int maxInFlight) {
+        if (maxOpsPerSec < 0 || targetLatencyMs < 0 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid throttle settings");
+        }
+        this.adaptive = adaptive;
+        this.maxRate = (maxOpsPerSec > 0) ? maxOpsPerSec : MAX_ADAPTIVE_RATE;
+        this.targetLatencyMicros = TimeUnit.MILLISECONDS.toMicros(targetLatencyMs);
+        this.maxInFlight = maxInFlight;
+        if (adaptive) {
+            limiter = RateLimiter.create(Math.min(INITIAL_RATE, maxRate));
+            inFlightLimit = Math.min(maxInFlight, (int) INITIAL_RATE);
+        } else {
+            limiter = (maxOpsPerSec > 0) ? RateLimiter.create(maxOpsPerSec) : null;
+            inFlightLimit = maxInFlight;
+        }
+    }
+
+    /**
+     * Waits until a request may be sent.
+     */
+    void acquire() {
+        acquire(1);
+    }
+
+    /**
+     * Waits until the specified number of requests (e.g. the operations of a multi()) may be sent.
+     */
+    void acquire(int requests) {
+        if (limiter != null && requests > 0) {
+            limiter.acquire(requests);
+        }
+    }
+
+    /**
+     * Returns the number of znodes which may currently be in flight with --async.
+     */
+    int getInFlightLimit() {
+        return inFlightLimit;
+    }
+
+    /**
+     * Returns the current request rate limit, or 0 if unlimited.
+     */
+    double getRate() {
+        return (limiter != null) ? limiter.getRate() : 0;
+    }
+
+    /**
+     * Records the latency of a completed request, adjusting the rate at the end of each window in adaptive mode.
+     */
+    void completed(long micros) {
+        if (!adaptive) {
+            return;
+        }
+        synchronized (this) {
+            windowRequests++;
+            windowMicros += micros;
+            final long now = System.nanoTime();
+            final long elapsed = now - windowStart;
+            if (elapsed < WINDOW_NANOS || windowRequests < MIN_WINDOW_REQUESTS) {
+                return;
+            }
+            adjust(windowMicros / windowRequests, windowRequests * 1e9 / elapsed);
+            windowStart = now;
+            windowRequests = 0;
+            windowMicros = 0;
+        }
+    }
+
+    private void adjust(long meanMicros, double throughput) {
+        baselineMicros = Math.min(baselineMicros, meanMicros);
+        final long threshold = (targetLatencyMicros > 0) ? targetLatencyMicros
+                : 2 * baselineMicros + JITTER_MICROS;
+        final double rate = limiter.getRate();
+        double newRate = rate;
+        if (meanMicros > threshold) {
+            slowStart = false;
+            newRate = Math.max(MIN_RATE, rate * DECREASE);
+        } else if (throughput >= 0.8 * rate) {
+            // Only grow while the limit is what's holding the requests back
+            newRate = Math.min(maxRate, slowStart ? rate * 2 : rate * INCREASE);
+        }
+        if (newRate != rate) {
+            limiter.setRate(newRate);
+            LOGGER.debug("Throttle rate {} -> {} requests/sec (mean latency {} us, target {} us)",
+                    new Object[] { (long) rate, (long) newRate, meanMicros, threshold });
+        }
+        final double concurrency = 2 * newRate * meanMicros / 1e6;
+        inFlightLimit = (int) Math.max(1, Math.min(maxInFlight, Math.ceil(concurrency)));
+    }
+}
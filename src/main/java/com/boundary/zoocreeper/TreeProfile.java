@@ -0,0 +1,416 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Shape of a tree of znodes: the number of znodes, their data size and fan-out (in power of two histograms), and the
+ * same totals for each subtree down to a fixed depth below the root path.
+ * <p>
+ * A profile is either read from ZooKeeper, using one pipelined getChildren() call (with the stat of the parent) per
+ * znode and no reads of data or ACLs, or from a backup. It is used by --auto-tune to choose the options of a backup
+ * or restore, and can be printed as a report.
+ */
+class TreeProfile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreeProfile.class);
+
+    // Subtrees beyond this number are only counted in the totals
+    private static final int MAX_SUBTREES = 10000;
+    private static final int MAX_REPORTED = 10;
+    private static final int NUM_BUCKETS = 33;
+
+    // Estimated size of the path, stat and ACLs of a znode (in bytes)
+    private static final int ZNODE_OVERHEAD = 256;
+    // Estimated bytes of znodes in flight which keep a session busy without piling up in the server's queues
+    private static final int IN_FLIGHT_BYTES = 4 * 1024 * 1024;
+    // Windows beyond the default --max-in-flight only add queueing latency, however small the znodes are
+    private static final int MIN_IN_FLIGHT = 8;
+    private static final int MAX_IN_FLIGHT = 1000;
+    private static final int MAX_BATCH_SIZE = 1000;
+    // Trees with fewer znodes are read and written one request at a time
+    private static final long SMALL_TREE = 1000;
+    // Number of znodes per session above which a backup uses several sessions
+    private static final long NODES_PER_SESSION = 250000;
+    private static final int MAX_SESSIONS = 8;
+    // Fan-out above which a getChildren() response may approach the server's jute.maxbuffer
+    private static final int LARGE_FAN_OUT = 100000;
+
+    private static final Comparator<Subtree> BY_NODES = new Comparator<Subtree>() {
+        @Override
+        public int compare(Subtree s1, Subtree s2) {
+            return (s1.nodes < s2.nodes) ? -1 : (s1.nodes > s2.nodes) ? 1 : 0;
+        }
+    };
+
+    private static final Comparator<Subtree> BY_FAN_OUT = new Comparator<Subtree>() {
+        @Override
+        public int compare(Subtree s1, Subtree s2) {
+            return (s1.maxFanOut < s2.maxFanOut) ? -1 : (s1.maxFanOut > s2.maxFanOut) ? 1 : 0;
+        }
+    };
+
+    /**
+     * Totals of a subtree (or, for the largest fan-outs, of a single znode).
+     */
+    static class Subtree {
+        final String path;
+        long nodes = 0;
+        long dataBytes = 0;
+        int maxFanOut = 0;
+
+        Subtree(String path) {
+            this.path = path;
+        }
+
+        private void add(int dataLength, int numChildren) {
+            nodes++;
+            dataBytes += dataLength;
+            maxFanOut = Math.max(maxFanOut, numChildren);
+        }
+    }
+
+    private final String rootPath;
+    private final int depth;
+    private final Subtree total;
+    private final long[] dataSizes = new long[NUM_BUCKETS];
+    private final long[] fanOuts = new long[NUM_BUCKETS];
+    private final Map<String, Subtree> subtrees = Maps.newHashMap();
+    private final PriorityQueue<Subtree> largestFanOuts = new PriorityQueue<Subtree>(MAX_REPORTED + 1, BY_FAN_OUT);
+    private int maxDataLength = 0;
+    private int maxDepth = 0;
+
+    /**
+     * @param depth Depth below the root path down to which subtrees are profiled.
+     */
+    TreeProfile(String rootPath, int depth) {
+        this.rootPath = rootPath;
+        this.depth = depth;
+        this.total = new Subtree(rootPath);
+    }
+
+    /**
+     * Profiles the tree below the --root-path in ZooKeeper using a session of its own (which doesn't share the
+     * throttle or metrics of the options).
+     */
+    static TreeProfile read(CommonOptions options, int depth)
+            throws IOException, KeeperException, InterruptedException {
+        final CommonOptions profileOptions = options.copyTo(new CommonOptions(), options.zkConnect);
+        final long start = System.currentTimeMillis();
+        final ZooKeeper zk = profileOptions.createZooKeeper(LOGGER);
+        try {
+            final TreeProfile profile = read(zk, profileOptions, depth);
+            LOGGER.info("Profiled {} znodes in {} ms", profile.getNodes(), System.currentTimeMillis() - start);
+            return profile;
+        } finally {
+            zk.close();
+        }
+    }
+
+    /**
+     * Profiles the tree below the --root-path in ZooKeeper, keeping up to the in-flight limit of requests in flight.
+     * Ephemeral znodes and the subtrees of znodes which are filtered out aren't counted.
+     */
+    static TreeProfile read(ZooKeeper zk, CommonOptions options, int depth)
+            throws KeeperException, InterruptedException {
+        final TreeProfile profile = new TreeProfile(options.rootPath, depth);
+        final BlockingQueue<ChildrenResult> completed = new LinkedBlockingQueue<ChildrenResult>();
+        final Children2Callback callback = new Children2Callback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+                completed.add(new ChildrenResult(rc, path, children, stat));
+            }
+        };
+        // Paths waiting to be read, with the next one on top
+        final Deque<String> unread = new ArrayDeque<String>();
+        unread.push(options.rootPath);
+        int outstanding = 0;
+        while (!unread.isEmpty() || outstanding > 0) {
+            while (!unread.isEmpty() && outstanding < options.getThrottle().getInFlightLimit()) {
+                zk.getChildren(unread.pop(), false, callback, null);
+                outstanding++;
+            }
+            final ChildrenResult result = completed.take();
+            outstanding--;
+            final Code code = Code.get(result.rc);
+            if (code == Code.NONODE) {
+                LOGGER.debug("Node disappeared during profile: {}", result.path);
+                continue;
+            }
+            if (code != Code.OK) {
+                throw KeeperException.create(code, result.path);
+            }
+            if (result.stat.getEphemeralOwner() != 0) {
+                continue;
+            }
+            profile.add(result.path, result.stat.getDataLength(), result.children.size());
+            final List<String> childPaths = Backup.getChildPaths(options, result.path, result.children);
+            for (int i = childPaths.size() - 1; i >= 0; i--) {
+                unread.push(childPaths.get(i));
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Profiles the subtree of a backup below the --root-path (see {@link SubtreeReader}), closing the reader.
+     */
+    static TreeProfile read(BackupReader backup, CommonOptions options, int depth) throws IOException {
+        final TreeProfile profile = new TreeProfile(options.rootPath, depth);
+        final BackupReader reader = new SubtreeReader(backup, options);
+        try {
+            for (BackupZNode zNode = reader.next(); zNode != null; zNode = reader.next()) {
+                profile.add(zNode.path, (zNode.data != null) ? zNode.data.length : 0, zNode.stat.getNumChildren());
+            }
+        } finally {
+            reader.close();
+        }
+        return profile;
+    }
+
+    private static class ChildrenResult {
+        private final int rc;
+        private final String path;
+        private final List<String> children;
+        private final Stat stat;
+
+        private ChildrenResult(int rc, String path, List<String> children, Stat stat) {
+            this.rc = rc;
+            this.path = path;
+            this.children = children;
+            this.stat = stat;
+        }
+    }
+
+    /**
+     * Adds a znode below the root path to the profile.
+     */
+    void add(String path, int dataLength, int numChildren) {
+        total.add(dataLength, numChildren);
+        dataSizes[bucket(dataLength)]++;
+        fanOuts[bucket(numChildren)]++;
+        maxDataLength = Math.max(maxDataLength, dataLength);
+        if (numChildren > 0) {
+            final Subtree parent = new Subtree(path);
+            parent.add(dataLength, numChildren);
+            largestFanOuts.add(parent);
+            if (largestFanOuts.size() > MAX_REPORTED) {
+                largestFanOuts.poll();
+            }
+        }
+        // Offset of the path below the root path (e.g. "/a/b" below "/x" in "/x/a/b")
+        final int start = "/".equals(rootPath) ? 0 : rootPath.length();
+        int nodeDepth = 0;
+        for (int end = start; end < path.length() && !path.equals(rootPath); ) {
+            end = path.indexOf('/', end + 1);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (++nodeDepth <= depth) {
+                subtree(path.substring(0, end)).add(dataLength, numChildren);
+            }
+        }
+        maxDepth = Math.max(maxDepth, nodeDepth);
+    }
+
+    private Subtree subtree(String path) {
+        Subtree subtree = subtrees.get(path);
+        if (subtree == null) {
+            subtree = new Subtree(path);
+            // Subtrees beyond the limit are still added to, but aren't kept
+            if (subtrees.size() < MAX_SUBTREES) {
+                subtrees.put(path, subtree);
+            }
+        }
+        return subtree;
+    }
+
+    /**
+     * Returns the index of the histogram bucket of a value: 0 for 0, and n for values from 2^(n-1) to 2^n - 1.
+     */
+    private static int bucket(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(value, 0));
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * Returns an upper bound of the data size below which the specified fraction of znodes fall.
+     */
+    long dataSizePercentile(double fraction) {
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total.nodes));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += dataSizes[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxDataLength);
+            }
+        }
+        return maxDataLength;
+    }
+
+    long getNodes() {
+        return total.nodes;
+    }
+
+    long getDataBytes() {
+        return total.dataBytes;
+    }
+
+    int getMaxFanOut() {
+        return total.maxFanOut;
+    }
+
+    /**
+     * Returns the number of znodes of the size of most znodes which can be in flight.
+     */
+    int inFlightWindow() {
+        final long bytesPerNode = dataSizePercentile(0.99) + ZNODE_OVERHEAD;
+        return (int) Math.max(MIN_IN_FLIGHT, Math.min(MAX_IN_FLIGHT, IN_FLIGHT_BYTES / bytesPerNode));
+    }
+
+    /**
+     * Returns the number of znodes of the size of most znodes which fit in a multi() transaction.
+     */
+    int batchSize(int maxBatchBytes) {
+        final long bytesPerNode = dataSizePercentile(0.99) + ZNODE_OVERHEAD;
+        return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, maxBatchBytes / bytesPerNode));
+    }
+
+    /**
+     * Chooses how a backup reads the tree, leaving options which were given alone: small trees are read one request
+     * at a time, very large ones with a session per {@link #NODES_PER_SESSION} znodes, and the rest with a single
+     * pipelined session whose window holds {@link #IN_FLIGHT_BYTES} of typical znodes. With --distribute-reads, every
+     * tree is read with at least one session per server.
+     */
+    void tune(BackupOptions options) {
+        final BackupOptions defaults = new BackupOptions();
+        if (options.parallelism == defaults.parallelism && options.readServers != null) {
+            final long sessions = Math.min(MAX_SESSIONS, total.nodes / NODES_PER_SESSION);
+            options.parallelism = (int) Math.max(options.readServers.size(), sessions);
+        } else if (options.parallelism == defaults.parallelism && !options.async && total.nodes >= SMALL_TREE) {
+            final long sessions = Math.min(MAX_SESSIONS, total.nodes / NODES_PER_SESSION);
+            if (sessions > 1) {
+                options.parallelism = (int) sessions;
+            } else {
+                options.async = true;
+            }
+        }
+        if (options.async && options.maxInFlight == defaults.maxInFlight) {
+            options.maxInFlight = inFlightWindow();
+        }
+        LOGGER.info("Auto-tuned backup of {} znodes: parallel={}, async={}, max-in-flight={}",
+                new Object[] { total.nodes, options.parallelism, options.async, options.maxInFlight });
+    }
+
+    /**
+     * Chooses how a restore writes the tree, leaving options which were given alone: small trees are written one
+     * request at a time, and the rest in multi() transactions of up to --max-batch-bytes of typical znodes, or with
+     * pipelined requests if only one such znode fits in a transaction.
+     */
+    void tune(RestoreOptions options) {
+        final RestoreOptions defaults = new RestoreOptions();
+        if (options.batchSize == defaults.batchSize && !options.async && total.nodes >= SMALL_TREE) {
+            final int batchSize = batchSize(options.maxBatchBytes);
+            if (batchSize > 1) {
+                options.batchSize = batchSize;
+            } else {
+                options.async = true;
+            }
+        }
+        if (options.async && options.maxInFlight == defaults.maxInFlight) {
+            options.maxInFlight = inFlightWindow();
+        }
+        LOGGER.info("Auto-tuned restore of {} znodes: batch-size={}, async={}, max-in-flight={}",
+                new Object[] { total.nodes, options.batchSize, options.async, options.maxInFlight });
+    }
+
+    /**
+     * Prints the profile as a report.
+     */
+    void print(PrintStream out) {
+        out.printf("Root path: %s%n", rootPath);
+        out.printf("Znodes: %d (max depth %d)%n", total.nodes, maxDepth);
+        out.printf("Data: %d bytes (mean %d, p50 <= %d, p99 <= %d, max %d)%n", total.dataBytes,
+                (total.nodes > 0) ? total.dataBytes / total.nodes : 0, dataSizePercentile(0.5),
+                dataSizePercentile(0.99), maxDataLength);
+        out.printf("Max fan-out: %d%n", total.maxFanOut);
+
+        out.println();
+        out.printf("%-24s %12s %12s%n", "Range", "Data size", "Fan-out");
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (dataSizes[i] == 0 && fanOuts[i] == 0) {
+                continue;
+            }
+            final String range = (i == 0) ? "0" : (bucketUpperBound(i - 1) + 1) + " - " + bucketUpperBound(i);
+            out.printf("%-24s %12d %12d%n", range, dataSizes[i], fanOuts[i]);
+        }
+
+        final List<Subtree> largest = Lists.newArrayList(subtrees.values());
+        Collections.sort(largest, Collections.reverseOrder(BY_NODES));
+        out.println();
+        out.printf("Largest subtrees (down to depth %d):%n", depth);
+        out.printf("%-48s %12s %14s %12s%n", "Path", "Znodes", "Data bytes", "Max fan-out");
+        for (Subtree subtree : largest.subList(0, Math.min(MAX_REPORTED, largest.size()))) {
+            out.printf("%-48s %12d %14d %12d%n", subtree.path, subtree.nodes, subtree.dataBytes, subtree.maxFanOut);
+        }
+        if (subtrees.size() >= MAX_SUBTREES) {
+            out.printf("(only the first %d subtrees were profiled)%n", MAX_SUBTREES);
+        }
+
+        final List<Subtree> fanOut = Lists.newArrayList(largestFanOuts);
+        Collections.sort(fanOut, Collections.reverseOrder(BY_FAN_OUT));
+        out.println();
+        out.println("Largest fan-outs:");
+        for (Subtree parent : fanOut) {
+            out.printf("%-48s %12d%s%n", parent.path, parent.maxFanOut,
+                    (parent.maxFanOut >= LARGE_FAN_OUT) ? "  (getChildren() may exceed jute.maxbuffer)" : "");
+        }
+
+        final BackupOptions backup = new BackupOptions();
+        tune(backup);
+        final RestoreOptions restore = new RestoreOptions();
+        tune(restore);
+        out.println();
+        out.println("Auto-tuned options:");
+        out.printf("  backup:  --parallel %d%s%n", backup.parallelism,
+                backup.async ? " --async --max-in-flight " + backup.maxInFlight : "");
+        out.printf("  restore: --batch-size %d%s%n", restore.batchSize,
+                restore.async ? " --async --max-in-flight " + restore.maxInFlight : "");
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of znodes between a thread writing a backup and a thread reading it, which blocks the writer while
+ * the queue is full.
+ * <p>
+ * The writer must call {@link #end(Throwable)} when it stops, whether or not it completed. If the reader is closed
+ * first (e.g. because it failed), writes fail instead of blocking forever.
+ */
+class ZNodeQueue {
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final BackupZNode END = new BackupZNode(null, null, null, null);
+
+    private final BlockingQueue<BackupZNode> queue;
+    private volatile boolean ended = false;
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    ZNodeQueue(int capacity) {
+        this.queue = new ArrayBlockingQueue<BackupZNode>(capacity);
+    }
+
+    private void put(BackupZNode zNode) throws IOException {
+        try {
+            while (!queue.offer(zNode, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new IOException("Reader of the queue was closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to the queue", e);
+        }
+    }
+
+    /**
+     * Ends the znodes written to the queue.
+     *
+     * @param failure Cause of the writer stopping before it completed (or null if it completed).
+     */
+    void end(Throwable failure) throws IOException {
+        if (ended || closed) {
+            return;
+        }
+        this.failure = failure;
+        ended = true;
+        put(END);
+    }
+
+    BackupWriter writer() {
+        return new BackupWriter() {
+            @Override
+            public void write(BackupZNode zNode) throws IOException {
+                if (ended) {
+                    throw new IOException("Queue has already ended");
+                }
+                put(zNode);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() throws IOException {
+                end(null);
+            }
+        };
+    }
+
+    BackupReader reader() {
+        return new BackupReader() {
+            @Override
+            public BackupZNode next() throws IOException {
+                if (closed) {
+                    return null;
+                }
+                final BackupZNode zNode;
+                try {
+                    zNode = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading from the queue", e);
+                }
+                if (zNode != END) {
+                    return zNode;
+                }
+                closed = true;
+                if (failure != null) {
+                    throw new IOException("Writer of the queue failed", failure);
+                }
+                return null;
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                queue.clear();
+            }
+        };
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import java.util.Comparator;
+
+/**
+ * Utilities for working with ZooKeeper paths.
+ */
+final class ZooKeeperPaths {
+
+    private ZooKeeperPaths() {}
+
+    /**
+     * Orders paths in the same sorted depth-first order used by {@link Backup}: a node sorts before all of its
+     * descendants, and siblings are sorted by name.
+     */
+    static final Comparator<String> DEPTH_FIRST_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String p1, String p2) {
+            final int len = Math.min(p1.length(), p2.length());
+            for (int i = 0; i < len; i++) {
+                final char c1 = p1.charAt(i);
+                final char c2 = p2.charAt(i);
+                if (c1 != c2) {
+                    // A separator ends the shorter path component, which sorts first
+                    if (c1 == '/') {
+                        return -1;
+                    }
+                    if (c2 == '/') {
+                        return 1;
+                    }
+                    return c1 - c2;
+                }
+            }
+            return p1.length() - p2.length();
+        }
+    };
+
+    /**
+     * Returns the full path of the child node with the specified name.
+     */
+    static String createFullPath(String path, String childPath) {
+        final String fullChildPath;
+        if (path.endsWith("/")) {
+            fullChildPath = path + childPath;
+        } else {
+            fullChildPath = path + '/' + childPath;
+        }
+        return fullChildPath;
+    }
+
+    /**
+     * Returns the path of the parent of the specified node ("/" for the root node).
+     */
+    static String getParentPath(String path) {
+        final int lastSlash = path.lastIndexOf('/');
+        return (lastSlash > 0) ? path.substring(0, lastSlash) : "/";
+    }
+
+    /**
+     * Returns true if the path is a (strict) descendant of the ancestor path.
+     */
+    static boolean isDescendant(String path, String ancestor) {
+        if ("/".equals(ancestor)) {
+            return path.length() > 1;
+        }
+        return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+}
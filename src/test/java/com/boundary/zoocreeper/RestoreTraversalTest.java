@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Boundary, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.boundary.zoocreeper;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestoreTraversalTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestoreTraversalTest.class);
+
+    // A sibling of the root path whose name starts with the root path's name
+    private static final List<String> PATHS = ImmutableList.of("/", "/a", "/a/b", "/a/b/c", "/a/bc", "/a/bc/d");
+    private static final List<String> SUBTREE = ImmutableList.of("/a/b", "/a/b/c");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRootPathWithIndexedReader() throws IOException {
+        final CommonOptions options = options(BackupFormat.BINARY, false);
+        final File file = writeBackup(options);
+        final BackupReader reader = options.openBackup(LOGGER, file.getPath());
+        assertTrue(reader instanceof IndexedBackupReader);
+        assertEquals(SUBTREE, restoredPaths(options, reader));
+    }
+
+    @Test
+    public void testRootPathWithCompressedReader() throws IOException {
+        final CommonOptions options = options(BackupFormat.BINARY, true);
+        final File file = writeBackup(options);
+        final BackupReader reader = options.openBackup(LOGGER, file.getPath());
+        assertFalse(reader instanceof IndexedBackupReader);
+        assertEquals(SUBTREE, restoredPaths(options, reader));
+    }
+
+    @Test
+    public void testRootPathWithJsonReader() throws IOException {
+        final CommonOptions options = options(BackupFormat.JSON, false);
+        final File file = writeBackup(options);
+        assertEquals(SUBTREE, restoredPaths(options, options.openBackup(LOGGER, file.getPath())));
+    }
+
+    private static CommonOptions options(BackupFormat format, boolean compress) {
+        final CommonOptions options = new CommonOptions();
+        options.format = format;
+        options.compress = compress;
+        options.rootPath = "/a/b";
+        return options;
+    }
+
+    private File writeBackup(CommonOptions options) throws IOException {
+        final File file = folder.newFile();
+        final BackupWriter writer = options.format.createWriter(
+                options.compression().wrap(new BufferedOutputStream(new FileOutputStream(file))), false, false);
+        try {
+            for (String path : PATHS) {
+                writer.write(new BackupZNode(path, new Stat(), new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE));
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static List<String> restoredPaths(CommonOptions options, BackupReader reader) throws IOException {
+        final List<String> paths = Lists.newArrayList();
+        try {
+            final RestoreTraversal traversal = new RestoreTraversal(options, reader);
+            while (traversal.next()) {
+                final List<BackupZNode> path = traversal.getPath();
+                paths.add(path.get(path.size() - 1).path);
+            }
+        } finally {
+            reader.close();
+        }
+        return paths;
+    }
+}